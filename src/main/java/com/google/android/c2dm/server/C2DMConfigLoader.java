@@ -20,7 +20,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.concurrent.locks.ReentrantLock;
 
+import com.google.appengine.api.memcache.MemcacheService;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.googlecode.objectify.Key;
@@ -29,16 +31,33 @@ import com.googlecode.objectify.ObjectifyFactory;
 
 /**
  * Stores config information related to Android Cloud to Device Messaging.
+ * The auth token is cached by this instance for a limited time, and shared
+ * with other instances through memcache. A single thread refreshes the token:
+ * other threads use the last known token meanwhile, or wait for the refresh
+ * if there is no token yet or if the last known token was rejected.
  */
 @Singleton
 class C2DMConfigLoader {
+    private static final String TOKEN_CACHE_KEY = "c2dm:authToken";
+    
+    /**
+     * Lifetime of the token cached by this instance, in milliseconds. A token
+     * updated by another instance is seen once this delay is elapsed.
+     */
+    static final long TOKEN_TTL = 5 * 60 * 1000;
+    
     private final ObjectifyFactory of;
     
-    private String currentToken;
+    private final MemcacheService memcacheService;
+    
+    private final ReentrantLock refreshLock = new ReentrantLock();
+    
+    private volatile CachedToken currentToken;
     
     @Inject
-    C2DMConfigLoader(final ObjectifyFactory of) {
+    C2DMConfigLoader(final ObjectifyFactory of, final MemcacheService memcacheService) {
         this.of = of;
+        this.memcacheService = memcacheService;
     }
     
     /**
@@ -48,20 +67,26 @@ class C2DMConfigLoader {
      */
     public void updateToken(String token) {
         if (token != null) {
-            currentToken = token;
+            currentToken = new CachedToken(token, false);
             
             final Objectify session = of.begin();
             final C2DMConfig dmConf = getC2DMConfig(session);
             dmConf.setAuthToken(token);
             session.put(dmConf);
+            
+            // Other instances get the new token from memcache.
+            memcacheService.put(TOKEN_CACHE_KEY, token);
         }
     }
     
     /**
-     * Token expired
+     * Token expired: the next refresh reads the token from the database.
      */
     public void invalidateCachedToken() {
-        currentToken = null;
+        final CachedToken token = currentToken;
+        if (token != null && !token.stale) {
+            currentToken = new CachedToken(token.value, true);
+        }
     }
     
     /**
@@ -70,10 +95,53 @@ class C2DMConfigLoader {
      * @return
      */
     public String getToken() {
-        if (currentToken == null) {
-            currentToken = getC2DMConfig().getAuthToken();
+        final CachedToken token = currentToken;
+        if (token != null && !token.isExpired()) {
+            return token.value;
+        }
+        
+        if (!refreshLock.tryLock()) {
+            if (token != null && !token.stale) {
+                // Another thread is refreshing the token: use the last known
+                // token, unless it was rejected.
+                return token.value;
+            }
+            refreshLock.lock();
+        }
+        try {
+            return refreshToken(token).value;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+    
+    /**
+     * Refresh the token cached by this instance. This method must be called
+     * with the refresh lock held.
+     * @param previous token seen before acquiring the lock
+     */
+    private CachedToken refreshToken(CachedToken previous) {
+        // The token may have been refreshed by another thread, while this
+        // thread was waiting for the lock.
+        final CachedToken current = currentToken;
+        if (current != previous && current != null && !current.isExpired()) {
+            return current;
+        }
+        
+        // The token in memcache is skipped if the token was rejected: this
+        // token may be stale.
+        String value = null;
+        if (previous == null || !previous.stale) {
+            value = (String) memcacheService.get(TOKEN_CACHE_KEY);
+        }
+        if (value == null) {
+            value = getC2DMConfig().getAuthToken();
+            memcacheService.put(TOKEN_CACHE_KEY, value);
         }
-        return currentToken;
+        
+        final CachedToken refreshed = new CachedToken(value, false);
+        currentToken = refreshed;
+        return refreshed;
     }
     
     public C2DMConfig getC2DMConfig() {
@@ -115,4 +183,22 @@ class C2DMConfigLoader {
         }
         return dmConfig;
     }
+    
+    /**
+     * Auth token cached by this instance.
+     */
+    private static class CachedToken {
+        public final String value;
+        public final boolean stale;
+        public final long loaded = System.currentTimeMillis();
+        
+        public CachedToken(final String value, final boolean stale) {
+            this.value = value;
+            this.stale = stale;
+        }
+        
+        public boolean isExpired() {
+            return stale || System.currentTimeMillis() - loaded > TOKEN_TTL;
+        }
+    }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Delivery metrics: counters and latency histograms. Endpoint metrics are
+ * recorded for each request sent to the C2DM endpoint. Push metrics, prefixed
+ * with {@link #PUSH}, are recorded for each device by every push transport and
+ * by their retry paths, whatever the endpoint. Metrics are kept in memory for
+ * this instance, and added to shared counters in memcache at most once every
+ * {@link #FLUSH_INTERVAL}, to get an aggregate view of every instance. Shared
+ * counters are lost if memcache evicts them.
+ * @author Pixmob
+ */
+@Singleton
+public class C2DMMetrics {
+    public static final String ATTEMPTS = "attempts";
+    public static final String SUCCESSES = "successes";
+    public static final String ERRORS = "errors.";
+    public static final String TOKEN_REFRESHES = "tokenRefreshes";
+    public static final String CIRCUIT_OPEN = "circuitOpen";
+    public static final String RETRIES_ENQUEUED = "retriesEnqueued";
+    public static final String RETRIES_DROPPED = "retriesDropped";
+    public static final String LATENCY = "latency.";
+    public static final String LATENCY_COUNT = LATENCY + "count";
+    public static final String LATENCY_TOTAL = LATENCY + "totalMs";
+    public static final String PUSH = "push.";
+    public static final String PUSH_ATTEMPTS = PUSH + "attempts";
+    public static final String PUSH_SENT = PUSH + "sent";
+    public static final String PUSH_RETRY = PUSH + "retry";
+    public static final String PUSH_ERROR = PUSH + "error";
+    public static final String PUSH_UNREGISTERED = PUSH + "unregistered";
+    public static final String PUSH_RETRIES_ENQUEUED = PUSH + "retriesEnqueued";
+    public static final String PUSH_RETRIES_DROPPED = PUSH + "retriesDropped";
+    public static final String PUSH_LATENCY = PUSH + LATENCY;
+    
+    /**
+     * Minimum delay between 2 flushes to memcache, in milliseconds.
+     */
+    public static final long FLUSH_INTERVAL = 60 * 1000;
+    
+    /**
+     * Upper bounds of the latency histogram buckets, in milliseconds.
+     */
+    private static final long[] LATENCY_BUCKETS = { 10, 25, 50, 100, 250, 500, 1000, 2500,
+            5000, 10000 };
+    
+    /**
+     * Error codes documented for the C2DM endpoint, always included in the
+     * aggregate view.
+     */
+    private static final String[] KNOWN_ERRORS = { "QuotaExceeded", "DeviceQuotaExceeded",
+            C2DMessaging.ERROR_INVALID_REGISTRATION, C2DMessaging.ERROR_NOT_REGISTERED,
+            "MessageTooBig", "MissingCollapseKey" };
+    
+    private static final String MEMCACHE_KEY_PREFIX = "c2dm:metrics:";
+    private static final Logger log = Logger.getLogger(C2DMMetrics.class.getName());
+    
+    private final MemcacheService memcacheService;
+    private final ConcurrentMap<String, AtomicLong> totals =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> pending =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong lastFlush = new AtomicLong(System.currentTimeMillis());
+    
+    @Inject
+    C2DMMetrics(final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+    
+    /**
+     * Increment a counter by one.
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+    
+    /**
+     * Add a value to a counter.
+     */
+    public void add(String name, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        getCounter(totals, name).addAndGet(delta);
+        getCounter(pending, name).addAndGet(delta);
+        flushIfNeeded();
+    }
+    
+    /**
+     * Record an error code returned by the C2DM endpoint.
+     */
+    public void error(String code) {
+        increment(ERRORS + code);
+    }
+    
+    /**
+     * Record the latency of a request sent to the C2DM endpoint.
+     */
+    public void latency(long millis) {
+        latency(LATENCY, millis);
+    }
+    
+    /**
+     * Record the latency of a message sent by a push transport to a set of
+     * devices.
+     */
+    public void pushLatency(long millis) {
+        latency(PUSH_LATENCY, millis);
+    }
+    
+    /**
+     * Get metrics of this instance, since this instance started.
+     */
+    public SortedMap<String, Long> getInstanceMetrics() {
+        final SortedMap<String, Long> metrics = new TreeMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> e : totals.entrySet()) {
+            metrics.put(e.getKey(), e.getValue().get());
+        }
+        return metrics;
+    }
+    
+    /**
+     * Get metrics of every instance, from memcache. Metrics of this instance
+     * are flushed first.
+     */
+    public SortedMap<String, Long> getAggregateMetrics() {
+        flush();
+        
+        final List<String> keys = new ArrayList<String>();
+        for (final String name : getMetricNames()) {
+            keys.add(MEMCACHE_KEY_PREFIX + name);
+        }
+        final Map<String, Object> values = memcacheService.getAll(keys);
+        
+        final SortedMap<String, Long> metrics = new TreeMap<String, Long>();
+        for (final Map.Entry<String, Object> e : values.entrySet()) {
+            if (e.getValue() instanceof Number) {
+                metrics.put(e.getKey().substring(MEMCACHE_KEY_PREFIX.length()), ((Number) e
+                        .getValue()).longValue());
+            }
+        }
+        return metrics;
+    }
+    
+    /**
+     * Flush metrics to memcache if the last flush is too old. Only one
+     * request flushes metrics.
+     */
+    private void flushIfNeeded() {
+        final long last = lastFlush.get();
+        final long now = System.currentTimeMillis();
+        if (now - last >= FLUSH_INTERVAL && lastFlush.compareAndSet(last, now)) {
+            flush();
+        }
+    }
+    
+    /**
+     * Add pending values to the counters in memcache, with a single call.
+     */
+    private void flush() {
+        final Map<String, Long> deltas = new HashMap<String, Long>(pending.size());
+        for (final Map.Entry<String, AtomicLong> e : pending.entrySet()) {
+            final long delta = e.getValue().getAndSet(0);
+            if (delta != 0) {
+                deltas.put(MEMCACHE_KEY_PREFIX + e.getKey(), delta);
+            }
+        }
+        if (deltas.isEmpty()) {
+            return;
+        }
+        
+        try {
+            memcacheService.incrementAll(deltas, 0L);
+        } catch (Exception e) {
+            // Values are not added back: the aggregate view is best effort.
+            log.log(Level.WARNING, "Failed to flush C2DM metrics", e);
+        }
+    }
+    
+    private void latency(String prefix, long millis) {
+        add(prefix + "count", 1);
+        add(prefix + "totalMs", millis);
+        increment(getLatencyBucket(prefix, millis));
+    }
+    
+    private Collection<String> getMetricNames() {
+        final Set<String> names = new TreeSet<String>(totals.keySet());
+        names.add(ATTEMPTS);
+        names.add(SUCCESSES);
+        names.add(TOKEN_REFRESHES);
+        names.add(CIRCUIT_OPEN);
+        names.add(RETRIES_ENQUEUED);
+        names.add(RETRIES_DROPPED);
+        names.add(PUSH_ATTEMPTS);
+        names.add(PUSH_SENT);
+        names.add(PUSH_RETRY);
+        names.add(PUSH_ERROR);
+        names.add(PUSH_UNREGISTERED);
+        names.add(PUSH_RETRIES_ENQUEUED);
+        names.add(PUSH_RETRIES_DROPPED);
+        for (final String prefix : new String[] { LATENCY, PUSH_LATENCY }) {
+            names.add(prefix + "count");
+            names.add(prefix + "totalMs");
+            for (final long bound : LATENCY_BUCKETS) {
+                names.add(prefix + bound);
+            }
+            names.add(prefix + "inf");
+        }
+        for (final String error : KNOWN_ERRORS) {
+            names.add(ERRORS + error);
+        }
+        return names;
+    }
+    
+    private static String getLatencyBucket(String prefix, long millis) {
+        for (final long bound : LATENCY_BUCKETS) {
+            if (millis <= bound) {
+                return prefix + bound;
+            }
+        }
+        return prefix + "inf";
+    }
+    
+    private static AtomicLong getCounter(ConcurrentMap<String, AtomicLong> counters,
+            String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            final AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.google.android.c2dm.server;
 
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.urlfetch.URLFetchServiceFactory;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.servlet.ServletModule;
@@ -25,16 +27,54 @@ import com.googlecode.objectify.ObjectifyFactory;
  * @author Pixmob
  */
 public class C2DMModule extends ServletModule {
+    /**
+     * System property for the maximum number of concurrent requests sent to
+     * the C2DM endpoint.
+     */
+    public static final String MAX_CONCURRENT_REQUESTS_PROPERTY = "c2dm.http.maxConcurrentRequests";
+    /**
+     * System property for the deadline of a request sent to the C2DM endpoint,
+     * in milliseconds.
+     */
+    public static final String DEADLINE_PROPERTY = "c2dm.http.deadline";
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 10;
+    private static final int DEFAULT_DEADLINE = 10000;
+    
     @Override
     protected void configureServlets() {
         bind(C2DMessaging.class);
-        serve("/tasks/c2dm").with(C2DMRetryServlet.class);
+        serve(C2DMRetryServlet.URI).with(C2DMRetryServlet.class);
+        serve(C2DMRetryWorkerServlet.URI).with(C2DMRetryWorkerServlet.class);
     }
     
     @Provides
     @Singleton
-    public C2DMConfigLoader getConfigLoader(ObjectifyFactory of) {
+    public C2DMConfigLoader getConfigLoader(ObjectifyFactory of, MemcacheService memcacheService) {
         of.register(C2DMConfig.class);
-        return new C2DMConfigLoader(of);
+        return new C2DMConfigLoader(of, memcacheService);
+    }
+    
+    @Provides
+    @Singleton
+    public HttpSender getHttpSender() {
+        return new URLFetchHttpSender(URLFetchServiceFactory.getURLFetchService(),
+            getMaxConcurrentRequests(), getDeadline());
+    }
+    
+    /**
+     * Get the maximum number of concurrent requests sent to the C2DM endpoint
+     * by an instance.
+     */
+    static int getMaxConcurrentRequests() {
+        return Integer.getInteger(MAX_CONCURRENT_REQUESTS_PROPERTY,
+            DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+    
+    /**
+     * Get the deadline of a request sent to the C2DM endpoint, in
+     * milliseconds.
+     */
+    static int getDeadline() {
+        return Integer.getInteger(DEADLINE_PROPERTY, DEFAULT_DEADLINE);
     }
 }
@@ -31,7 +31,10 @@ import com.google.inject.Singleton;
 /**
  * A task that sends tickles to device clients. This will be invoked by
  * AppEngine cron to retry failed requests. You must configure
- * war/WEB-INF/queue.xml and the web.xml entries.
+ * war/WEB-INF/queue.xml and the web.xml entries. When a message cannot be
+ * sent, the next attempt is handed off to the retry pull queue, processed by
+ * {@link C2DMRetryWorkerServlet}. This servlet only handles tasks which were
+ * queued before the retry pull queue existed.
  */
 @Singleton
 public class C2DMRetryServlet extends HttpServlet {
@@ -41,15 +44,19 @@ public class C2DMRetryServlet extends HttpServlet {
     
     public static final String URI = "/tasks/c2dm";
     
-    public static final String RETRY_COUNT = "X-AppEngine-TaskRetryCount";
+    private final C2DMessaging c2dMessaging;
     
-    static int MAX_RETRY = 3;
+    private final InvalidRegistrationHandler invalidRegistrationHandler;
     
-    private final C2DMessaging c2dMessaging;
+    private final C2DMMetrics metrics;
     
     @Inject
-    C2DMRetryServlet(final C2DMessaging c2dMessaging) {
+    C2DMRetryServlet(final C2DMessaging c2dMessaging,
+            final InvalidRegistrationHandler invalidRegistrationHandler,
+            final C2DMMetrics metrics) {
         this.c2dMessaging = c2dMessaging;
+        this.invalidRegistrationHandler = invalidRegistrationHandler;
+        this.metrics = metrics;
     }
     
     /**
@@ -60,15 +67,8 @@ public class C2DMRetryServlet extends HttpServlet {
             throws ServletException, IOException {
         
         String registrationId = req.getParameter(C2DMessaging.PARAM_REGISTRATION_ID);
-        String retryCount = req.getHeader(RETRY_COUNT);
-        if (retryCount != null) {
-            int retryCnt = Integer.parseInt(retryCount);
-            if (retryCnt > MAX_RETRY) {
-                log.severe("Too many retries, drop message for :" + registrationId);
-                resp.setStatus(200);
-                return; // will not try again.
-            }
-        }
+        String attemptParam = req.getParameter(C2DMessaging.PARAM_ATTEMPT);
+        int attempt = attemptParam == null ? 1 : Integer.parseInt(attemptParam);
         
         Map<String, String[]> params = req.getParameterMap();
         String collapse = req.getParameter(C2DMessaging.PARAM_COLLAPSE_KEY);
@@ -76,16 +76,36 @@ public class C2DMRetryServlet extends HttpServlet {
         
         try {
             // Send doesn't retry !!
-            // We use the queue exponential backoff for retries.
-            boolean sentOk = c2dMessaging.sendNoRetry(registrationId, collapse, params,
-                delayWhenIdle);
+            // The next attempt is scheduled with a new task.
+            boolean sentOk;
+            try {
+                sentOk = c2dMessaging.sendNoRetry(registrationId, collapse, params,
+                    delayWhenIdle);
+            } catch (InvalidRegistrationException ex) {
+                throw ex;
+            } catch (MessageRejectedException ex) {
+                throw ex;
+            } catch (IOException ex) {
+                // Transport failures are temporary, like an open circuit.
+                log.warning("Failed to send C2DM message: " + ex.getMessage());
+                sentOk = false;
+            }
             log.info("Retry result " + sentOk + " " + registrationId);
-            if (sentOk) {
-                resp.setStatus(200);
-                resp.getOutputStream().write("OK".getBytes());
-            } else {
-                resp.setStatus(500); // retry this task
+            if (!sentOk) {
+                if (attempt < C2DMessaging.MAX_ATTEMPTS) {
+                    c2dMessaging.retry(registrationId, collapse, params, delayWhenIdle,
+                        attempt + 1);
+                } else {
+                    log.severe("Too many retries, drop message for :" + registrationId);
+                    metrics.increment(C2DMMetrics.RETRIES_DROPPED);
+                }
             }
+            resp.setStatus(200);
+            resp.getOutputStream().write("OK".getBytes());
+        } catch (InvalidRegistrationException ex) {
+            invalidRegistrationHandler.onInvalidRegistration(registrationId);
+            resp.setStatus(200);
+            resp.getOutputStream().write(("Invalid registration:" + ex.getError()).getBytes());
         } catch (IOException ex) {
             resp.setStatus(200);
             resp.getOutputStream().write(("Non-retriable error:" + ex.toString()).getBytes());
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Send again messages from the retry pull queue. Messages are leased by
+ * batches, and sent concurrently with a bounded number of pending requests.
+ * Sent messages are deleted from the queue with a single call for each batch.
+ * Messages which could not be sent are kept in the queue: their lease is
+ * extended with an exponential backoff, until the maximum number of attempts
+ * is reached. This servlet is invoked by AppEngine cron.
+ * <p>
+ * The lease of a batch lasts twice as long as the worst case for sending the
+ * batch, when every request reaches its deadline. No request is started once
+ * its result could not be read before the lease expires: the remaining
+ * messages are sent when they are leased again, and a message is never sent
+ * by two workers.
+ * <p>
+ * This servlet is the retry path of the C2DM push transport: push metrics are
+ * recorded for each message, in addition to the C2DM endpoint metrics.
+ * @author Pixmob
+ */
+@Singleton
+public class C2DMRetryWorkerServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    
+    public static final String URI = "/cron/c2dm-retry";
+    
+    private static final int LEASE_SIZE = 100;
+    
+    private static final int MAX_PENDING_MESSAGES = 20;
+    
+    /**
+     * Time left on a lease, in addition to the request deadline, when the
+     * last request of a batch may be started.
+     */
+    private static final long LEASE_MARGIN = 10 * 1000;
+    
+    private static final long MAX_RUN_TIME = 5 * 60 * 1000;
+    
+    private static final Logger log = Logger.getLogger(C2DMRetryWorkerServlet.class.getName());
+    
+    private final C2DMessaging c2dMessaging;
+    
+    private final InvalidRegistrationHandler invalidRegistrationHandler;
+    
+    private final C2DMMetrics metrics;
+    
+    private final long requestDeadline;
+    
+    private final int maxPendingMessages;
+    
+    private final long leaseTime;
+    
+    @Inject
+    C2DMRetryWorkerServlet(final C2DMessaging c2dMessaging,
+            final InvalidRegistrationHandler invalidRegistrationHandler,
+            final C2DMMetrics metrics) {
+        this.c2dMessaging = c2dMessaging;
+        this.invalidRegistrationHandler = invalidRegistrationHandler;
+        this.metrics = metrics;
+        this.requestDeadline = C2DMModule.getDeadline();
+        
+        // Requests are sent by waves of pending messages: a wave never uses
+        // more than the request slots of the instance.
+        this.maxPendingMessages = Math.max(1, Math.min(MAX_PENDING_MESSAGES,
+            C2DMModule.getMaxConcurrentRequests()));
+        final int waves = (LEASE_SIZE + maxPendingMessages - 1) / maxPendingMessages;
+        this.leaseTime = 2 * waves * requestDeadline + LEASE_MARGIN;
+    }
+    
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        final Queue queue = QueueFactory.getQueue(C2DMessaging.RETRY_QUEUE);
+        final long deadline = System.currentTimeMillis() + MAX_RUN_TIME;
+        int total = 0;
+        int count;
+        do {
+            count = processBatch(queue);
+            total += count;
+        } while (count == LEASE_SIZE && System.currentTimeMillis() < deadline);
+        
+        if (total != 0) {
+            log.info("C2DM messages processed: " + total);
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+    
+    /**
+     * Lease a batch of messages, and send them.
+     * @return number of leased messages
+     */
+    private int processBatch(Queue queue) {
+        // The lease is considered to start before the tasks are leased. A
+        // request started before the last start time is done, or has reached
+        // its deadline, when the lease still has LEASE_MARGIN left.
+        final long lastStartTime = System.currentTimeMillis() + leaseTime - LEASE_MARGIN
+                - requestDeadline;
+        final List<TaskHandle> tasks = queue.leaseTasks(leaseTime, TimeUnit.MILLISECONDS,
+            LEASE_SIZE);
+        final List<TaskHandle> completedTasks = new ArrayList<TaskHandle>(tasks.size());
+        final LinkedList<PendingMessage> pendingMessages = new LinkedList<PendingMessage>();
+        
+        int skipped = 0;
+        for (final TaskHandle task : tasks) {
+            if (pendingMessages.size() >= maxPendingMessages) {
+                readResult(queue, pendingMessages.removeFirst(), completedTasks);
+            }
+            if (System.currentTimeMillis() > lastStartTime) {
+                // This message is sent when it is leased again.
+                skipped++;
+                continue;
+            }
+            
+            final Map<String, List<String>> taskParams;
+            try {
+                taskParams = task.extractParams();
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Invalid retry task: " + task.getName(), e);
+                completedTasks.add(task);
+                continue;
+            }
+            
+            final String registrationId = getParam(taskParams, C2DMessaging.PARAM_REGISTRATION_ID);
+            final String collapse = getParam(taskParams, C2DMessaging.PARAM_COLLAPSE_KEY);
+            final String attemptParam = getParam(taskParams, C2DMessaging.PARAM_ATTEMPT);
+            final boolean delayWhileIdle = getParam(taskParams,
+                C2DMessaging.PARAM_DELAY_WHILE_IDLE) != null;
+            if (registrationId == null || collapse == null) {
+                log.warning("Invalid retry task: " + task.getName());
+                completedTasks.add(task);
+                continue;
+            }
+            
+            // The task is leased again for each attempt.
+            final int attempt = (attemptParam == null ? 1 : Integer.parseInt(attemptParam))
+                    + Math.max(task.getRetryCount() - 1, 0);
+            final Map<String, String[]> params = new HashMap<String, String[]>(4);
+            for (final Map.Entry<String, List<String>> e : taskParams.entrySet()) {
+                if (e.getKey().startsWith("data.") && !e.getValue().isEmpty()) {
+                    params.put(e.getKey(), new String[] { e.getValue().get(0) });
+                }
+            }
+            
+            metrics.increment(C2DMMetrics.PUSH_ATTEMPTS);
+            try {
+                final PreparedMessage message = c2dMessaging.prepare(collapse, params,
+                    delayWhileIdle);
+                final long start = System.currentTimeMillis();
+                pendingMessages.add(new PendingMessage(task, registrationId, attempt, start,
+                        c2dMessaging.sendNoRetryAsync(registrationId, message)));
+            } catch (CircuitOpenException e) {
+                backoff(queue, task, attempt, completedTasks);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to send C2DM message to " + registrationId, e);
+                backoff(queue, task, attempt, completedTasks);
+            }
+        }
+        
+        while (!pendingMessages.isEmpty()) {
+            readResult(queue, pendingMessages.removeFirst(), completedTasks);
+        }
+        
+        if (!completedTasks.isEmpty()) {
+            try {
+                queue.deleteTask(completedTasks);
+            } catch (RuntimeException e) {
+                log.log(Level.WARNING, "Failed to delete " + completedTasks.size()
+                        + " C2DM message(s)", e);
+            }
+        }
+        if (skipped != 0) {
+            log.warning("Lease about to expire: " + skipped + " C2DM message(s) left");
+        }
+        
+        return tasks.size();
+    }
+    
+    private void readResult(Queue queue, PendingMessage message,
+            List<TaskHandle> completedTasks) {
+        try {
+            final boolean sent = message.result.get();
+            metrics.pushLatency(System.currentTimeMillis() - message.start);
+            if (sent) {
+                metrics.increment(C2DMMetrics.PUSH_SENT);
+                completedTasks.add(message.task);
+            } else {
+                backoff(queue, message.task, message.attempt, completedTasks);
+            }
+        } catch (InterruptedException e) {
+            // The message is sent again when the lease expires.
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InvalidRegistrationException) {
+                metrics.increment(C2DMMetrics.PUSH_UNREGISTERED);
+                invalidRegistrationHandler.onInvalidRegistration(message.registrationId);
+                completedTasks.add(message.task);
+            } else if (e.getCause() instanceof IOException
+                    && !(e.getCause() instanceof MessageRejectedException)) {
+                // Transport failures are temporary.
+                log.log(Level.WARNING, "Failed to send C2DM message to "
+                        + message.registrationId, e.getCause());
+                backoff(queue, message.task, message.attempt, completedTasks);
+            } else {
+                log.log(Level.SEVERE, "Non-retriable error for " + message.registrationId,
+                    e.getCause());
+                metrics.increment(C2DMMetrics.PUSH_ERROR);
+                completedTasks.add(message.task);
+            }
+        }
+    }
+    
+    /**
+     * Keep a message in the queue for another attempt, unless the maximum
+     * number of attempts is reached.
+     */
+    private void backoff(Queue queue, TaskHandle task, int attempt,
+            List<TaskHandle> completedTasks) {
+        metrics.increment(C2DMMetrics.PUSH_RETRY);
+        if (attempt >= C2DMessaging.MAX_ATTEMPTS) {
+            log.severe("Too many retries, drop message: " + task.getName());
+            metrics.increment(C2DMMetrics.RETRIES_DROPPED);
+            metrics.increment(C2DMMetrics.PUSH_RETRIES_DROPPED);
+            completedTasks.add(task);
+        } else {
+            metrics.increment(C2DMMetrics.PUSH_RETRIES_ENQUEUED);
+            try {
+                queue.modifyTaskLease(task, c2dMessaging.getRetryDelay(attempt + 1),
+                    TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // The message is sent again when its lease expires.
+                log.log(Level.WARNING, "Failed to extend lease: " + task.getName(), e);
+            }
+        }
+    }
+    
+    private static String getParam(Map<String, List<String>> params, String name) {
+        final List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+    
+    /**
+     * Message waiting for a response.
+     */
+    private static class PendingMessage {
+        public final TaskHandle task;
+        public final String registrationId;
+        public final int attempt;
+        public final long start;
+        public final Future<Boolean> result;
+        
+        public PendingMessage(final TaskHandle task, final String registrationId,
+                final int attempt, final long start, final Future<Boolean> result) {
+            this.task = task;
+            this.registrationId = registrationId;
+            this.attempt = attempt;
+            this.start = start;
+            this.result = result;
+        }
+    }
+}
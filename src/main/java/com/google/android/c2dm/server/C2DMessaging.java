@@ -16,24 +16,25 @@
 
 package com.google.android.c2dm.server;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskHandle;
 import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -56,58 +57,211 @@ public class C2DMessaging {
     
     private static final String UTF8 = "UTF-8";
     
+    public static final String PARAM_ATTEMPT = "attempt";
+    
+    /**
+     * Pull queue where messages to retry are stored.
+     */
+    public static final String RETRY_QUEUE = "c2dm-retry";
+    
+    /**
+     * Maximum number of attempts for sending a message.
+     */
+    public static final int MAX_ATTEMPTS = 3;
+    
+    /**
+     * Maximum number of tasks added to a queue with a single call.
+     */
+    private static final int MAX_TASKS_PER_ADD = 100;
+    
+    public static final String ERROR_INVALID_REGISTRATION = "InvalidRegistration";
+    
+    public static final String ERROR_NOT_REGISTERED = "NotRegistered";
+    
+    public static final String ERROR_QUOTA_EXCEEDED = "QuotaExceeded";
+    
+    public static final String ERROR_DEVICE_QUOTA_EXCEEDED = "DeviceQuotaExceeded";
+    
     /**
-     * Jitter - random interval to wait before retry.
+     * Maximum delay before the first retry. Retry delays double with each
+     * attempt, with full jitter.
      */
-    public static final int C2DM_MAX_JITTER_MSEC = 3000;
+    public static final int C2DM_RETRY_BASE_DELAY_MSEC = 3000;
+    
+    /**
+     * Maximum delay before any retry.
+     */
+    public static final int C2DM_RETRY_MAX_DELAY_MSEC = 10 * 60 * 1000;
     
     private final C2DMConfigLoader dmConfigLoader;
     
+    private final HttpSender httpSender;
+    
+    private final RetryScheduler retryScheduler;
+    
+    private final C2DMMetrics metrics;
+    
     @Inject
-    C2DMessaging(final C2DMConfigLoader dmConfigLoader) {
+    C2DMessaging(final C2DMConfigLoader dmConfigLoader, final HttpSender httpSender,
+            final C2DMMetrics metrics) {
         this.dmConfigLoader = dmConfigLoader;
+        this.httpSender = httpSender;
+        this.metrics = metrics;
+        this.retryScheduler = new RetryScheduler(httpSender, C2DM_SEND_ENDPOINT,
+                C2DM_RETRY_BASE_DELAY_MSEC, C2DM_RETRY_MAX_DELAY_MSEC);
+    }
+    
+    /**
+     * Get statistics for the HTTP sender used to reach the C2DM endpoint.
+     */
+    public Map<String, Long> getSenderStats() {
+        return httpSender.getStats();
     }
     
     public boolean sendNoRetry(String registrationId, String collapse,
             Map<String, String[]> params, boolean delayWhileIdle) throws IOException {
+        return sendNoRetry(registrationId, prepare(collapse, params, delayWhileIdle));
+    }
+    
+    /**
+     * Send a prepared message to a device.
+     * @see #sendNoRetry(String, String, Map, boolean)
+     */
+    public boolean sendNoRetry(String registrationId, PreparedMessage message)
+            throws IOException {
+        byte[] postData = message.encode(registrationId);
         
-        // Send a sync message to this Android device.
-        StringBuilder postDataBuilder = new StringBuilder();
-        postDataBuilder.append(PARAM_REGISTRATION_ID).append("=").append(registrationId);
+        // Hit the dm URL. The response body is always read, so that the
+        // connection may be reused.
+        String authToken = dmConfigLoader.getToken();
+        metrics.increment(C2DMMetrics.ATTEMPTS);
+        long start = System.currentTimeMillis();
+        HttpResult result;
+        try {
+            result = httpSender.post(C2DM_SEND_ENDPOINT, newHeaders(authToken), postData);
+        } catch (CircuitOpenException e) {
+            metrics.increment(C2DMMetrics.CIRCUIT_OPEN);
+            throw e;
+        }
+        metrics.latency(System.currentTimeMillis() - start);
+        return readResult(result, authToken);
+    }
+    
+    /**
+     * Start sending a prepared message, without waiting for the C2DM endpoint
+     * response. The returned {@link Future} has the same result as
+     * {@link #sendNoRetry(String, String, Map, boolean)}: errors are reported
+     * with an {@link ExecutionException} wrapping an {@link IOException}.
+     * Permanent errors are either an {@link InvalidRegistrationException} or a
+     * {@link MessageRejectedException}: other errors, such as transport
+     * failures, are temporary. The result must be read.
+     */
+    public Future<Boolean> sendNoRetryAsync(String registrationId, PreparedMessage message)
+            throws IOException {
+        byte[] postData = message.encode(registrationId);
         
+        final String authToken = dmConfigLoader.getToken();
+        metrics.increment(C2DMMetrics.ATTEMPTS);
+        final long start = System.currentTimeMillis();
+        final Future<HttpResult> pendingResult;
+        try {
+            pendingResult = httpSender.postAsync(C2DM_SEND_ENDPOINT, newHeaders(authToken),
+                postData);
+        } catch (CircuitOpenException e) {
+            metrics.increment(C2DMMetrics.CIRCUIT_OPEN);
+            throw e;
+        }
+        return new Future<Boolean>() {
+            private boolean measured;
+            
+            @Override
+            public Boolean get() throws InterruptedException, ExecutionException {
+                try {
+                    return readResult(measure(pendingResult.get()), authToken);
+                } catch (IOException e) {
+                    throw new ExecutionException(e);
+                }
+            }
+            
+            @Override
+            public Boolean get(long timeout, TimeUnit unit) throws InterruptedException,
+                    ExecutionException, TimeoutException {
+                try {
+                    return readResult(measure(pendingResult.get(timeout, unit)), authToken);
+                } catch (IOException e) {
+                    throw new ExecutionException(e);
+                }
+            }
+            
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return pendingResult.cancel(mayInterruptIfRunning);
+            }
+            
+            @Override
+            public boolean isCancelled() {
+                return pendingResult.isCancelled();
+            }
+            
+            @Override
+            public boolean isDone() {
+                return pendingResult.isDone();
+            }
+            
+            /**
+             * Record the latency when the response is first read: the
+             * latency includes the time spent before reading the response.
+             */
+            private synchronized HttpResult measure(HttpResult result) {
+                if (!measured) {
+                    measured = true;
+                    metrics.latency(System.currentTimeMillis() - start);
+                }
+                return result;
+            }
+        };
+    }
+    
+    /**
+     * Prepare a message for sending it to several devices. The collapse key
+     * and the data parameters are encoded once: only the registration
+     * identifier is added for each device.
+     */
+    public PreparedMessage prepare(String collapse, Map<String, String[]> params,
+            boolean delayWhileIdle) throws UnsupportedEncodingException {
+        // The registration identifier is the first parameter: the template
+        // starts with the next parameter.
+        StringBuilder postDataBuilder = new StringBuilder();
         if (delayWhileIdle) {
             postDataBuilder.append("&").append(PARAM_DELAY_WHILE_IDLE).append("=1");
         }
-        postDataBuilder.append("&").append(PARAM_COLLAPSE_KEY).append("=").append(collapse);
+        postDataBuilder.append("&").append(PARAM_COLLAPSE_KEY).append("=")
+                .append(URLEncoder.encode(collapse, UTF8));
         
+        Map<String, String[]> dataParams = new LinkedHashMap<String, String[]>(4);
         for (Object keyObj : params.keySet()) {
             String key = (String) keyObj;
             if (key.startsWith("data.")) {
                 String[] values = (String[]) params.get(key);
                 postDataBuilder.append("&").append(key).append("=")
                         .append(URLEncoder.encode(values[0], UTF8));
+                dataParams.put(key, values);
             }
         }
         
-        byte[] postData = postDataBuilder.toString().getBytes(UTF8);
-        
-        // Hit the dm URL.
-        URL url = new URL(C2DM_SEND_ENDPOINT);
-        
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setDoOutput(true);
-        conn.setUseCaches(false);
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-        conn.setRequestProperty("Content-Length", Integer.toString(postData.length));
-        String authToken = dmConfigLoader.getToken();
-        conn.setRequestProperty("Authorization", "GoogleLogin auth=" + authToken);
-        
-        OutputStream out = conn.getOutputStream();
-        out.write(postData);
-        out.close();
-        
-        int responseCode = conn.getResponseCode();
+        return new PreparedMessage(collapse, dataParams, delayWhileIdle, postDataBuilder
+                .toString().getBytes(UTF8));
+    }
+    
+    private Map<String, String> newHeaders(String authToken) {
+        Map<String, String> headers = new LinkedHashMap<String, String>(4);
+        headers.put("Content-Type", "application/x-www-form-urlencoded");
+        headers.put("Authorization", "GoogleLogin auth=" + authToken);
+        return headers;
+    }
+    
+    private boolean readResult(HttpResult result, String authToken) throws IOException {
+        int responseCode = result.getStatus();
         
         if (responseCode == HttpServletResponse.SC_UNAUTHORIZED
                 || responseCode == HttpServletResponse.SC_FORBIDDEN) {
@@ -119,54 +273,70 @@ public class C2DMessaging {
             // another server,
             // and next retry will get the good one from database.
             log.warning("Unauthorized - need token");
+            metrics.increment(C2DMMetrics.TOKEN_REFRESHES);
             dmConfigLoader.invalidateCachedToken();
             return false;
         }
         
+        if (responseCode >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR) {
+            // Server error or unavailable (503): retry later. The retry
+            // delay honors the Retry-After header, through the circuit
+            // breaker of the sender.
+            log.warning("Got " + responseCode + " response from Google C2DM endpoint");
+            metrics.error("HTTP" + responseCode);
+            return false;
+        }
+        
         // Check for updated token header
-        String updatedAuthToken = conn.getHeaderField(UPDATE_CLIENT_AUTH);
+        String updatedAuthToken = result.getHeader(UPDATE_CLIENT_AUTH);
         if (updatedAuthToken != null && !authToken.equals(updatedAuthToken)) {
             log.info("Got updated auth token from C2DM servers: " + updatedAuthToken);
             dmConfigLoader.updateToken(updatedAuthToken);
         }
         
-        String responseLine = new BufferedReader(new InputStreamReader(conn.getInputStream()))
-                .readLine();
+        String responseLine = result.readLine();
         
-        // NOTE: You *MUST* use exponential backoff if you receive a 503
-        // response code.
-        // Since App Engine's task queue mechanism automatically does this for
-        // tasks that
-        // return non-success error codes, this is not explicitly implemented
-        // here.
-        // If we weren't using App Engine, we'd need to manually implement this.
+        // Retries use an exponential backoff: see RetryScheduler.
         log.info("Got " + responseCode + " response from Google C2DM endpoint.");
         
         if (responseLine == null || responseLine.equals("")) {
+            metrics.error("EmptyResponse");
             throw new IOException("Got empty response from Google C2DM endpoint.");
         }
         
         String[] responseParts = responseLine.split("=", 2);
         if (responseParts.length != 2) {
             log.warning("Invalid message from google: " + responseCode + " " + responseLine);
+            metrics.error("InvalidResponse");
             throw new IOException("Invalid response from Google " + responseCode + " "
                     + responseLine);
         }
         
         if (responseParts[0].equals("id")) {
             log.info("Successfully sent data message to device: " + responseLine);
+            metrics.increment(C2DMMetrics.SUCCESSES);
             return true;
         }
         
         if (responseParts[0].equals("Error")) {
             String err = responseParts[1];
             log.warning("Got error response from Google C2DM endpoint: " + err);
+            metrics.error(err);
+            if (ERROR_INVALID_REGISTRATION.equals(err) || ERROR_NOT_REGISTERED.equals(err)) {
+                // This registration should not be used anymore.
+                throw new InvalidRegistrationException(err);
+            }
+            if (ERROR_QUOTA_EXCEEDED.equals(err) || ERROR_DEVICE_QUOTA_EXCEEDED.equals(err)) {
+                // Too many messages: retry later.
+                return false;
+            }
             // No retry.
             // TODO(costin): show a nicer error to the user.
-            throw new IOException("Server error: " + err);
+            throw new MessageRejectedException(err);
         } else {
             // 500 or unparseable response - server error, needs to retry
             log.warning("Invalid response from google " + responseLine + " " + responseCode);
+            metrics.error("InvalidResponse");
             return false;
         }
     }
@@ -179,22 +349,23 @@ public class C2DMessaging {
     public void sendWithRetry(String token, String collapseKey, String name1, String value1,
             String name2, String value2) throws IOException {
         
-        Map<String, String[]> params = new HashMap<String, String[]>();
-        params.put("data." + name1, new String[] { value1 });
-        params.put("data." + name2, new String[] { value2 });
+        Map<String, String[]> params = dataParams(name1, value1, name2, value2);
         
-        boolean sentOk = sendNoRetry(token, collapseKey, params, true);
+        boolean sentOk;
+        try {
+            sentOk = sendNoRetry(token, collapseKey, params, true);
+        } catch (CircuitOpenException e) {
+            sentOk = false;
+        }
         if (!sentOk) {
-            retry(token, collapseKey, params, true);
+            retry(token, collapseKey, params, true, 1);
         }
     }
     
     public boolean sendNoRetry(String token, String collapseKey, String name1, String value1,
             String name2, String value2) throws IOException {
         
-        Map<String, String[]> params = new HashMap<String, String[]>();
-        params.put("data." + name1, new String[] { value1 });
-        params.put("data." + name2, new String[] { value2 });
+        Map<String, String[]> params = dataParams(name1, value1, name2, value2);
         
         try {
             return sendNoRetry(token, collapseKey, params, true);
@@ -203,31 +374,90 @@ public class C2DMessaging {
         }
     }
     
-    private void retry(String token, String collapseKey, Map<String, String[]> params,
-            boolean delayWhileIdle) {
-        Queue dmQueue = QueueFactory.getQueue("c2dm");
-        try {
-            TaskOptions url = TaskOptions.Builder.withUrl(C2DMRetryServlet.URI)
-                    .param(C2DMessaging.PARAM_REGISTRATION_ID, token)
-                    .param(C2DMessaging.PARAM_COLLAPSE_KEY, collapseKey);
-            if (delayWhileIdle) {
-                url.param(PARAM_DELAY_WHILE_IDLE, "1");
+    /**
+     * Build message parameters with 2 data values.
+     */
+    public static Map<String, String[]> dataParams(String name1, String value1, String name2,
+            String value2) {
+        Map<String, String[]> params = new HashMap<String, String[]>();
+        params.put("data." + name1, new String[] { value1 });
+        params.put("data." + name2, new String[] { value2 });
+        return params;
+    }
+    
+    /**
+     * Get the delay before a message is sent again.
+     * @param attempt attempt number, starting from 1
+     * @return delay in milliseconds
+     */
+    public long getRetryDelay(int attempt) {
+        return retryScheduler.getDelay(attempt);
+    }
+    
+    /**
+     * Schedule a prepared message for several devices for retry. Retry tasks
+     * are added to the queue by batches of {@link #MAX_TASKS_PER_ADD}.
+     */
+    public void retry(Collection<String> registrationIds, PreparedMessage message) {
+        if (registrationIds.isEmpty()) {
+            return;
+        }
+        Queue dmQueue = QueueFactory.getQueue(RETRY_QUEUE);
+        List<TaskOptions> tasks = new ArrayList<TaskOptions>(Math.min(registrationIds.size(),
+            MAX_TASKS_PER_ADD));
+        for (String registrationId : registrationIds) {
+            tasks.add(newRetryTask(registrationId, message.getCollapseKey(),
+                message.getParams(), message.isDelayWhileIdle(), 1));
+            if (tasks.size() == MAX_TASKS_PER_ADD) {
+                dmQueue.add(tasks);
+                metrics.add(C2DMMetrics.RETRIES_ENQUEUED, tasks.size());
+                tasks.clear();
             }
-            for (String key : params.keySet()) {
+        }
+        if (!tasks.isEmpty()) {
+            dmQueue.add(tasks);
+            metrics.add(C2DMMetrics.RETRIES_ENQUEUED, tasks.size());
+        }
+    }
+    
+    /**
+     * Schedule a message for retry. The retry delay grows exponentially with
+     * the attempt number.
+     * @param attempt attempt number, starting from 1
+     */
+    public void retry(String token, String collapseKey, Map<String, String[]> params,
+            boolean delayWhileIdle, int attempt) {
+        Queue dmQueue = QueueFactory.getQueue(RETRY_QUEUE);
+        dmQueue.add(newRetryTask(token, collapseKey, params, delayWhileIdle, attempt));
+        metrics.increment(C2DMMetrics.RETRIES_ENQUEUED);
+    }
+    
+    /**
+     * Create a retry task for the pull queue. The task is leased by
+     * {@link C2DMRetryWorkerServlet} once its countdown is elapsed.
+     */
+    private TaskOptions newRetryTask(String token, String collapseKey,
+            Map<String, String[]> params, boolean delayWhileIdle, int attempt) {
+        TaskOptions url = TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                .param(C2DMessaging.PARAM_REGISTRATION_ID, token)
+                .param(C2DMessaging.PARAM_COLLAPSE_KEY, collapseKey)
+                .param(PARAM_ATTEMPT, String.valueOf(attempt));
+        if (delayWhileIdle) {
+            url.param(PARAM_DELAY_WHILE_IDLE, "1");
+        }
+        for (String key : params.keySet()) {
+            // Task parameters are encoded by the task queue: values are
+            // encoded once, when the message is sent.
+            if (key.startsWith("data.")) {
                 String[] values = (String[]) params.get(key);
-                url.param(key, URLEncoder.encode(values[0], UTF8));
+                url.param(key, values[0]);
             }
-            
-            // Task queue implements the exponential backoff
-            long jitter = (int) Math.random() * C2DM_MAX_JITTER_MSEC;
-            url.countdownMillis(jitter);
-            
-            TaskHandle add = dmQueue.add(url);
-        } catch (UnsupportedEncodingException e) {
-            // Ignore - UTF8 should be supported
-            log.log(Level.SEVERE, "Unexpected error", e);
         }
         
+        // Exponential backoff with full jitter, spreading retries over time.
+        url.countdownMillis(retryScheduler.getDelay(attempt));
+        
+        return url;
     }
-    
+
 }
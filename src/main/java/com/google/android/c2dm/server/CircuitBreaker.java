@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+/**
+ * Circuit breaker for an endpoint. After a number of consecutive failures, or
+ * when the endpoint asks for a delay with a <code>Retry-After</code> header,
+ * the circuit is open: requests are rejected until a delay is elapsed. Then a
+ * single request is allowed: the circuit is closed again if this request
+ * succeeds.
+ * @author Pixmob
+ */
+class CircuitBreaker {
+    private final int failureThreshold;
+    private final long openDelay;
+    private int failures;
+    private long openUntil;
+    private long probeStart;
+    
+    /**
+     * Create a new instance.
+     * @param failureThreshold number of consecutive failures opening the
+     *            circuit
+     * @param openDelay minimum delay while the circuit is open, in
+     *            milliseconds
+     */
+    public CircuitBreaker(final int failureThreshold, final long openDelay) {
+        this.failureThreshold = failureThreshold;
+        this.openDelay = openDelay;
+    }
+    
+    /**
+     * Check if a request may be sent. When the circuit was open, a single
+     * request is allowed until its result is known.
+     */
+    public synchronized boolean allowRequest() {
+        final long now = System.currentTimeMillis();
+        if (now < openUntil) {
+            return false;
+        }
+        if (failures < failureThreshold && openUntil == 0) {
+            return true;
+        }
+        // The circuit is half open: a probe request is allowed if no other
+        // probe request is pending.
+        if (probeStart != 0 && now - probeStart < openDelay) {
+            return false;
+        }
+        probeStart = now;
+        return true;
+    }
+    
+    public synchronized void onSuccess() {
+        failures = 0;
+        openUntil = 0;
+        probeStart = 0;
+    }
+    
+    /**
+     * Record a failed request.
+     * @param retryAfter delay asked by the endpoint, in milliseconds, or 0
+     */
+    public synchronized void onFailure(long retryAfter) {
+        ++failures;
+        probeStart = 0;
+        if (failures >= failureThreshold || retryAfter > 0) {
+            openUntil = System.currentTimeMillis() + Math.max(openDelay, retryAfter);
+        }
+    }
+    
+    /**
+     * Get the delay before requests are allowed again.
+     * @return delay in milliseconds, or 0 if the circuit is not open
+     */
+    public synchronized long getRetryDelay() {
+        return Math.max(0, openUntil - System.currentTimeMillis());
+    }
+    
+    public synchronized boolean isOpen() {
+        return openUntil > System.currentTimeMillis();
+    }
+}
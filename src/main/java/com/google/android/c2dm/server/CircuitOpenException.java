@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import java.io.IOException;
+
+/**
+ * Error raised when a request is not sent because the circuit for its
+ * endpoint is open. This error is temporary: the request should be sent again
+ * later.
+ * @author Pixmob
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final long retryDelay;
+    
+    public CircuitOpenException(final String endpoint, final long retryDelay) {
+        super("Circuit open for " + endpoint);
+        this.retryDelay = retryDelay;
+    }
+    
+    /**
+     * Get the delay before requests are allowed again, in milliseconds.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP response returned by a {@link HttpSender}.
+ * @author Pixmob
+ */
+public class HttpResult {
+    private final int status;
+    private final Map<String, String> headers;
+    private final byte[] content;
+    
+    /**
+     * Create a new instance.
+     * @param headers response headers, with lower case names
+     */
+    public HttpResult(final int status, final Map<String, String> headers, final byte[] content) {
+        this.status = status;
+        this.headers = headers;
+        this.content = content == null ? new byte[0] : content;
+    }
+    
+    public int getStatus() {
+        return status;
+    }
+    
+    /**
+     * Get a response header, ignoring case.
+     * @return header value, or <code>null</code> if this header is not set
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+    
+    /**
+     * Get the delay set with the <code>Retry-After</code> header. This header
+     * may be a number of seconds or a date.
+     * @return delay in milliseconds, or 0 if this header is not set or invalid
+     */
+    public long getRetryAfter() {
+        final String retryAfter = getHeader("Retry-After");
+        if (retryAfter == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            final SimpleDateFormat dateFormat = new SimpleDateFormat(
+                    "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            try {
+                return Math.max(0, dateFormat.parse(retryAfter.trim()).getTime()
+                        - System.currentTimeMillis());
+            } catch (ParseException e2) {
+                return 0;
+            }
+        }
+    }
+    
+    public byte[] getContent() {
+        return content;
+    }
+    
+    /**
+     * Get the first line of the response body.
+     * @return first line, or <code>null</code> if the body is empty
+     */
+    public String readLine() throws IOException {
+        return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content),
+                "UTF-8")).readLine();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Send HTTP requests to push servers. Implementations must be thread-safe:
+ * an instance is shared by every request.
+ * @author Pixmob
+ */
+public interface HttpSender {
+    /**
+     * Send a POST request. The response body is always fully read, even for
+     * errors.
+     * @param url target URL
+     * @param headers request headers
+     * @param body request body
+     * @throws IOException if the request could not be sent, or if no response
+     *             was received in time
+     */
+    HttpResult post(String url, Map<String, String> headers, byte[] body) throws IOException;
+    
+    /**
+     * Start sending a POST request, without waiting for the response. The
+     * result of the returned {@link Future} must be read: the request is in
+     * flight until then. If the request fails, the {@link Future} throws an
+     * {@link java.util.concurrent.ExecutionException} wrapping an
+     * {@link IOException}. The caller is responsible for bounding the number
+     * of pending requests.
+     * @see #post(String, Map, byte[])
+     */
+    Future<HttpResult> postAsync(String url, Map<String, String> headers, byte[] body)
+            throws IOException;
+    
+    /**
+     * Get the delay before requests to an URL are sent again. Requests are
+     * rejected with a {@link CircuitOpenException} while the endpoint is
+     * failing.
+     * @return delay in milliseconds, or 0 if requests are allowed
+     */
+    long getRetryDelay(String url);
+    
+    /**
+     * Get statistics for this sender.
+     */
+    Map<String, Long> getStats();
+}
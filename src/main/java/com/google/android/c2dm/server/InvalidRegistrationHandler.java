@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+/**
+ * Handle registration identifiers rejected by the push server.
+ * @author Pixmob
+ */
+public interface InvalidRegistrationHandler {
+    /**
+     * Called when a registration identifier is no longer valid: messages
+     * should not be sent to this registration anymore.
+     */
+    void onInvalidRegistration(String registrationId);
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import java.io.IOException;
+
+/**
+ * Error raised when a message is rejected by the push server with a permanent
+ * error, such as <code>MessageTooBig</code>: sending this message again would
+ * fail the same way. Other {@link IOException} errors are temporary.
+ * @author Pixmob
+ */
+public class MessageRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+    private final String error;
+    
+    public MessageRejectedException(final String error) {
+        super("Message rejected: " + error);
+        this.error = error;
+    }
+    
+    /**
+     * Get the error returned by the push server.
+     */
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Message encoded once, and sent to several devices. The request body is
+ * built from a template: only the registration identifier is added for each
+ * device.
+ * @author Pixmob
+ * @see C2DMessaging#prepare(String, Map, boolean)
+ */
+public class PreparedMessage {
+    private static final byte[] REGISTRATION_ID_PREFIX = (C2DMessaging.PARAM_REGISTRATION_ID + "=")
+            .getBytes();
+    private final String collapseKey;
+    private final Map<String, String[]> params;
+    private final boolean delayWhileIdle;
+    private final byte[] template;
+    
+    /**
+     * Create a new instance.
+     * @param template encoded request body following the registration
+     *            identifier
+     */
+    PreparedMessage(final String collapseKey, final Map<String, String[]> params,
+            final boolean delayWhileIdle, final byte[] template) {
+        this.collapseKey = collapseKey;
+        this.params = Collections.unmodifiableMap(params);
+        this.delayWhileIdle = delayWhileIdle;
+        this.template = template;
+    }
+    
+    public String getCollapseKey() {
+        return collapseKey;
+    }
+    
+    /**
+     * Get message data parameters, with the <code>data.</code> prefix.
+     */
+    public Map<String, String[]> getParams() {
+        return params;
+    }
+    
+    public boolean isDelayWhileIdle() {
+        return delayWhileIdle;
+    }
+    
+    /**
+     * Encode the request body for a device.
+     */
+    byte[] encode(String registrationId) throws UnsupportedEncodingException {
+        final byte[] id = registrationId.getBytes("UTF-8");
+        final byte[] body = new byte[REGISTRATION_ID_PREFIX.length + id.length
+                + template.length];
+        System.arraycopy(REGISTRATION_ID_PREFIX, 0, body, 0, REGISTRATION_ID_PREFIX.length);
+        System.arraycopy(id, 0, body, REGISTRATION_ID_PREFIX.length, id.length);
+        System.arraycopy(template, 0, body, REGISTRATION_ID_PREFIX.length + id.length,
+            template.length);
+        return body;
+    }
+}
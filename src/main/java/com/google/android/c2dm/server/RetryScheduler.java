@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import java.util.Random;
+
+/**
+ * Compute retry delays for an endpoint. The delay grows exponentially with
+ * each attempt, with full jitter: the actual delay is randomly chosen between
+ * 0 and the exponential delay, so that retries are spread over time. When the
+ * circuit for the endpoint is open, the retry is scheduled after the circuit
+ * is closed again.
+ * @author Pixmob
+ */
+public class RetryScheduler {
+    private final HttpSender httpSender;
+    private final String endpoint;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+    
+    /**
+     * Create a new instance.
+     * @param baseDelay maximum delay for the first attempt, in milliseconds
+     * @param maxDelay maximum delay for any attempt, in milliseconds
+     */
+    public RetryScheduler(final HttpSender httpSender, final String endpoint,
+            final long baseDelay, final long maxDelay) {
+        this.httpSender = httpSender;
+        this.endpoint = endpoint;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+    
+    /**
+     * Get the delay before sending a request again.
+     * @param attempt attempt number, starting from 1
+     * @return delay in milliseconds
+     */
+    public long getDelay(int attempt) {
+        // Avoid an overflow for large attempt numbers.
+        final int shift = Math.min(Math.max(attempt - 1, 0), 30);
+        final long delay = Math.min(maxDelay, baseDelay << shift);
+        final double jitter;
+        synchronized (random) {
+            jitter = random.nextDouble();
+        }
+        return httpSender.getRetryDelay(endpoint) + (long) (jitter * delay);
+    }
+}
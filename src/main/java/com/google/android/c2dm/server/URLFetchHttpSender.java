@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.urlfetch.FetchOptions;
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+
+/**
+ * {@link HttpSender} implementation using the AppEngine URL Fetch service.
+ * Connections are pooled and kept alive by the URL Fetch service. The number of
+ * concurrent requests sent by this instance is limited: a synchronous request
+ * waits for a slot at most for the request deadline, whereas an asynchronous
+ * request waits for a short time only, since its caller may hold slots with
+ * responses it has not read yet. The slot of an asynchronous request is
+ * released when its response is read. Each endpoint has a
+ * {@link CircuitBreaker}: requests are rejected while an endpoint is failing.
+ * @author Pixmob
+ */
+public class URLFetchHttpSender implements HttpSender {
+    private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+    private static final long CIRCUIT_OPEN_DELAY = 30 * 1000;
+    /**
+     * Maximum time spent waiting for a slot by an asynchronous request, in
+     * milliseconds.
+     */
+    private static final long ASYNC_SLOT_TIMEOUT = 1000;
+    private final URLFetchService urlFetchService;
+    private final Semaphore slots;
+    private final int maxConcurrentRequests;
+    private final long deadline;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong circuitRejections = new AtomicLong();
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers =
+            new ConcurrentHashMap<String, CircuitBreaker>(2);
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    
+    /**
+     * Create a new instance.
+     * @param maxConcurrentRequests maximum number of requests sent at the same
+     *            time
+     * @param deadline request deadline, in milliseconds
+     */
+    public URLFetchHttpSender(final URLFetchService urlFetchService,
+            final int maxConcurrentRequests, final long deadline) {
+        this.urlFetchService = urlFetchService;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.deadline = deadline;
+        slots = new Semaphore(maxConcurrentRequests, true);
+    }
+    
+    @Override
+    public HttpResult post(String url, Map<String, String> headers, byte[] body)
+            throws IOException {
+        return getResult(send(url, headers, body, deadline));
+    }
+    
+    @Override
+    public Future<HttpResult> postAsync(String url, Map<String, String> headers, byte[] body)
+            throws IOException {
+        return send(url, headers, body, ASYNC_SLOT_TIMEOUT);
+    }
+    
+    /**
+     * Send a request once a slot is available. The slot is released when the
+     * response is read.
+     * @param slotTimeout maximum time spent waiting for a slot, in
+     *            milliseconds
+     */
+    private Future<HttpResult> send(String url, Map<String, String> headers, byte[] body,
+            long slotTimeout) throws IOException {
+        final URL target = new URL(url);
+        try {
+            if (!slots.tryAcquire(slotTimeout, TimeUnit.MILLISECONDS)) {
+                rejections.incrementAndGet();
+                throw new IOException("Too many concurrent requests");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a request slot");
+        }
+        
+        final CircuitBreaker circuitBreaker = getCircuitBreaker(target);
+        if (!circuitBreaker.allowRequest()) {
+            slots.release();
+            circuitRejections.incrementAndGet();
+            throw new CircuitOpenException(getEndpoint(target), circuitBreaker.getRetryDelay());
+        }
+        
+        final HTTPRequest req = new HTTPRequest(target, HTTPMethod.POST,
+                FetchOptions.Builder.withDeadline(deadline / 1000d).disallowTruncate()
+                        .doNotFollowRedirects().validateCertificate());
+        for (final Map.Entry<String, String> e : headers.entrySet()) {
+            req.addHeader(new HTTPHeader(e.getKey(), e.getValue()));
+        }
+        req.setPayload(body);
+        
+        updatePeakInFlight(inFlight.incrementAndGet());
+        requests.incrementAndGet();
+        final long start = System.currentTimeMillis();
+        try {
+            return new PendingResult(urlFetchService.fetchAsync(req), circuitBreaker, start);
+        } catch (RuntimeException e) {
+            complete(start, false);
+            circuitBreaker.onFailure(0);
+            throw new IOException("Request failed: " + e.getMessage(), e);
+        }
+    }
+    
+    private static HttpResult getResult(Future<HttpResult> pendingResult) throws IOException {
+        try {
+            return pendingResult.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a response");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Request failed: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Update statistics when a request is done, and release its slot.
+     */
+    private void complete(long start, boolean success) {
+        slots.release();
+        totalLatency.addAndGet(System.currentTimeMillis() - start);
+        inFlight.decrementAndGet();
+        if (!success) {
+            failures.incrementAndGet();
+        }
+    }
+    
+    @Override
+    public long getRetryDelay(String url) {
+        try {
+            return getCircuitBreaker(new URL(url)).getRetryDelay();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+    
+    private CircuitBreaker getCircuitBreaker(URL url) {
+        final String endpoint = getEndpoint(url);
+        CircuitBreaker circuitBreaker = circuitBreakers.get(endpoint);
+        if (circuitBreaker == null) {
+            circuitBreakers.putIfAbsent(endpoint, new CircuitBreaker(CIRCUIT_FAILURE_THRESHOLD,
+                    CIRCUIT_OPEN_DELAY));
+            circuitBreaker = circuitBreakers.get(endpoint);
+        }
+        return circuitBreaker;
+    }
+    
+    private static String getEndpoint(URL url) {
+        return url.getProtocol() + "://" + url.getAuthority();
+    }
+    
+    private void updatePeakInFlight(int current) {
+        int peak;
+        do {
+            peak = peakInFlight.get();
+        } while (current > peak && !peakInFlight.compareAndSet(peak, current));
+    }
+    
+    @Override
+    public Map<String, Long> getStats() {
+        final long requestCount = requests.get();
+        final Map<String, Long> stats = new LinkedHashMap<String, Long>(8);
+        stats.put("maxConcurrentRequests", (long) maxConcurrentRequests);
+        stats.put("deadline", deadline);
+        stats.put("requests", requestCount);
+        stats.put("failures", failures.get());
+        stats.put("rejections", rejections.get());
+        stats.put("circuitRejections", circuitRejections.get());
+        long openCircuits = 0;
+        for (final CircuitBreaker circuitBreaker : circuitBreakers.values()) {
+            if (circuitBreaker.isOpen()) {
+                ++openCircuits;
+            }
+        }
+        stats.put("openCircuits", openCircuits);
+        stats.put("inFlight", (long) inFlight.get());
+        stats.put("peakInFlight", (long) peakInFlight.get());
+        stats.put("averageLatency", requestCount == 0 ? 0 : totalLatency.get() / requestCount);
+        return stats;
+    }
+    
+    /**
+     * Response of a request sent with URL Fetch. Statistics, the circuit
+     * breaker and the request slot are updated when the response is read for
+     * the first time, or when the request is cancelled.
+     * @author Pixmob
+     */
+    private class PendingResult implements Future<HttpResult> {
+        private final Future<HTTPResponse> response;
+        private final CircuitBreaker circuitBreaker;
+        private final long start;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        
+        public PendingResult(final Future<HTTPResponse> response,
+                final CircuitBreaker circuitBreaker, final long start) {
+            this.response = response;
+            this.circuitBreaker = circuitBreaker;
+            this.start = start;
+        }
+        
+        @Override
+        public HttpResult get() throws InterruptedException, ExecutionException {
+            try {
+                return read(0, null);
+            } catch (TimeoutException e) {
+                // No timeout is set: the request has its own deadline.
+                throw new ExecutionException(new IOException("Request timed out", e));
+            }
+        }
+        
+        @Override
+        public HttpResult get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            if (unit == null) {
+                throw new NullPointerException("Time unit is required");
+            }
+            return read(timeout, unit);
+        }
+        
+        /**
+         * Read the response. The request is not completed if the timeout
+         * elapses before the response is received.
+         * @param unit unit of the timeout, or <code>null</code> to wait until
+         *            the request deadline
+         */
+        private HttpResult read(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            boolean success = false;
+            boolean pending = false;
+            HttpResult result = null;
+            try {
+                result = toResult(unit == null ? response.get() : response.get(timeout, unit));
+                success = true;
+                return result;
+            } catch (TimeoutException e) {
+                pending = true;
+                throw e;
+            } catch (RuntimeException e) {
+                // URL Fetch reports some errors (such as a deadline) with
+                // runtime exceptions.
+                throw new ExecutionException(new IOException("Request failed: "
+                        + e.getMessage(), e));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw e;
+                }
+                throw new ExecutionException(new IOException("Request failed: "
+                        + e.getCause().getMessage(), e.getCause()));
+            } finally {
+                if (!pending && completed.compareAndSet(false, true)) {
+                    complete(start, success);
+                    // Server errors (5xx) count as failures for the circuit
+                    // breaker.
+                    if (result != null && result.getStatus() < 500) {
+                        circuitBreaker.onSuccess();
+                    } else {
+                        circuitBreaker.onFailure(result == null ? 0 : result.getRetryAfter());
+                    }
+                }
+            }
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            final boolean cancelled = response.cancel(mayInterruptIfRunning);
+            if (cancelled && completed.compareAndSet(false, true)) {
+                complete(start, false);
+            }
+            return cancelled;
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            return response.isCancelled();
+        }
+        
+        @Override
+        public boolean isDone() {
+            return response.isDone();
+        }
+        
+        private HttpResult toResult(HTTPResponse resp) {
+            final Map<String, String> respHeaders = new HashMap<String, String>(8);
+            for (final HTTPHeader header : resp.getHeaders()) {
+                respHeaders.put(header.getName().toLowerCase(), header.getValue());
+            }
+            return new HttpResult(resp.getResponseCode(), respHeaders, resp.getContent());
+        }
+    }
+}
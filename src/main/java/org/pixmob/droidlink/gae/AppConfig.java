@@ -15,11 +15,23 @@
  */
 package org.pixmob.droidlink.gae;
 
+import org.pixmob.droidlink.gae.cron.CleanEventsCron;
+import org.pixmob.droidlink.gae.cron.FlushEventsCron;
+import org.pixmob.droidlink.gae.push.PushModule;
+import org.pixmob.droidlink.gae.queue.CleanEventsQueue;
+import org.pixmob.droidlink.gae.queue.DeleteJobQueue;
+import org.pixmob.droidlink.gae.queue.RefreshCacheQueue;
+import org.pixmob.droidlink.gae.queue.ReindexDevicesQueue;
+import org.pixmob.droidlink.gae.queue.ReindexEventsQueue;
 import org.pixmob.droidlink.gae.queue.SyncQueue;
 import org.pixmob.droidlink.gae.service.ServiceModule;
+import org.pixmob.droidlink.gae.web.GzipFilter;
 import org.pixmob.droidlink.gae.web.service.ClearCacheWebService;
 import org.pixmob.droidlink.gae.web.service.DeviceWebService;
 import org.pixmob.droidlink.gae.web.service.EventWebService;
+import org.pixmob.droidlink.gae.web.service.JobWebService;
+import org.pixmob.droidlink.gae.web.service.PushMetricsWebService;
+import org.pixmob.droidlink.gae.web.service.StatsWebService;
 
 import com.google.android.c2dm.server.C2DMModule;
 import com.google.appengine.api.memcache.MemcacheService;
@@ -48,8 +60,8 @@ import freemarker.log.Logger;
 public class AppConfig extends GuiceServletContextListener {
     @Override
     protected Injector getInjector() {
-        return Guice.createInjector(new AppstatsModule(), new AppEngineModule(),
-            new ServiceModule(), new WebModule(), new C2DMModule());
+        return Guice.createInjector(new AppstatsModule(), new GzipModule(), new AppEngineModule(),
+            new ServiceModule(), new WebModule(), new C2DMModule(), new PushModule());
     }
     
     /**
@@ -59,10 +71,18 @@ public class AppConfig extends GuiceServletContextListener {
     static class AppEngineModule extends AbstractModule {
         @Override
         protected void configure() {
+            bind(Queue.class).annotatedWith(Names.named("c2dm")).toInstance(
+                QueueFactory.getQueue("c2dm"));
             bind(Queue.class).annotatedWith(Names.named("sync")).toInstance(
                 QueueFactory.getQueue("sync"));
             bind(Queue.class).annotatedWith(Names.named("cache")).toInstance(
                 QueueFactory.getQueue("cache"));
+            bind(Queue.class).annotatedWith(Names.named("maintenance")).toInstance(
+                QueueFactory.getQueue("maintenance"));
+            bind(Queue.class).annotatedWith(Names.named("delete")).toInstance(
+                QueueFactory.getQueue("delete"));
+            bind(Queue.class).annotatedWith(Names.named("events")).toInstance(
+                QueueFactory.getQueue("events"));
             bind(UserService.class).toInstance(UserServiceFactory.getUserService());
             bind(MemcacheService.class).toInstance(MemcacheServiceFactory.getMemcacheService());
         }
@@ -78,10 +98,33 @@ public class AppConfig extends GuiceServletContextListener {
             // Register web services.
             at(DeviceWebService.URI).serve(DeviceWebService.class);
             at(EventWebService.URI).serve(EventWebService.class);
+            at(JobWebService.URI).serve(JobWebService.class);
             at(ClearCacheWebService.URI).serve(ClearCacheWebService.class);
+            at(StatsWebService.URI).serve(StatsWebService.class);
+            at(PushMetricsWebService.URI).serve(PushMetricsWebService.class);
             
             // Register task queues.
             at(SyncQueue.URI).serve(SyncQueue.class);
+            at(ReindexEventsQueue.URI).serve(ReindexEventsQueue.class);
+            at(ReindexDevicesQueue.URI).serve(ReindexDevicesQueue.class);
+            at(CleanEventsQueue.URI).serve(CleanEventsQueue.class);
+            at(DeleteJobQueue.URI).serve(DeleteJobQueue.class);
+            at(RefreshCacheQueue.URI).serve(RefreshCacheQueue.class);
+            
+            // Register cron jobs.
+            at(CleanEventsCron.URI).serve(CleanEventsCron.class);
+            at(FlushEventsCron.URI).serve(FlushEventsCron.class);
+        }
+    }
+    
+    /**
+     * Guice configuration module for compressing API responses.
+     * @author Pixmob
+     */
+    static class GzipModule extends ServletModule {
+        @Override
+        protected void configureServlets() {
+            filter("/api/*").through(GzipFilter.class);
         }
     }
     
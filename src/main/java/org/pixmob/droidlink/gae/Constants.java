@@ -25,10 +25,36 @@ public final class Constants {
     public static final String C2DM_MESSAGE_SYNC = "sync";
     public static final String C2DM_SYNC_TOKEN_EXTRA = "token";
     
+    public static final int PUSH_MAX_PENDING_REQUESTS = 10;
+    public static final long PUSH_RETRY_DELAY = 10 * 1000;
+    public static final long PUSH_MAX_RETRY_DELAY = 10 * 60 * 1000;
+    public static final int PUSH_MAX_RETRY_IDS_PER_TASK = 100;
+    
+    public static final long SYNC_WINDOW = Long.getLong("droidlink.sync.window", 10 * 1000);
+    public static final long SYNC_STATE_TTL = 60 * 1000;
+    public static final long SYNC_WATERMARK_LAG = 60 * 1000;
+    
     public static final String JSON_MIME_TYPE = "application/json";
+    public static final String BINARY_MIME_TYPE = "application/octet-stream";
     
     public static final boolean ENABLE_APPSTATS = true;
     
+    public static final int DEVICE_OWNER_CACHE_SIZE = 1000;
+    public static final long DEVICE_OWNER_CACHE_TTL = 5 * 60 * 1000;
+    
+    public static final int EVENT_MAX_AGE_DAYS = 30;
+    public static final int CLEAN_EVENTS_DEVICES_PER_TASK = 50;
+    public static final int CLEAN_EVENTS_MAX_EVENTS_PER_TASK = 500;
+    
+    public static final boolean ENABLE_EVENT_WRITE_BEHIND = Boolean
+            .getBoolean("droidlink.events.writeBehind");
+    public static final long EVENT_BUFFER_LEASE_TIME = 60 * 1000;
+    public static final int EVENT_BUFFER_BATCH_SIZE = 500;
+    public static final long EVENT_BUFFER_FLUSH_TIME = 30 * 1000;
+    
+    public static final int RESPONSE_CACHE_MAX_SIZE = 512 * 1024;
+    public static final int RESPONSE_CACHE_TTL_SECONDS = 60 * 60;
+    
     private Constants() {
     }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.cron;
+
+import java.util.logging.Logger;
+
+import org.pixmob.droidlink.gae.Constants;
+import org.pixmob.droidlink.gae.queue.CleanEventsQueue;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.sitebricks.At;
+import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Request;
+import com.google.sitebricks.headless.Service;
+import com.google.sitebricks.http.Get;
+
+/**
+ * Start deleting expired events. The maximum event age (in days) may be set
+ * with a request parameter: it must be a positive number.
+ * @author Pixmob
+ */
+@At(CleanEventsCron.URI)
+@Service
+public class CleanEventsCron {
+    public static final String URI = "/cron/clean-events";
+    public static final String MAX_AGE_DAYS_PARAM = "days";
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final Queue maintenanceQueue;
+    
+    @Inject
+    CleanEventsCron(@Named("maintenance") final Queue maintenanceQueue) {
+        this.maintenanceQueue = maintenanceQueue;
+    }
+    
+    @Get
+    public Reply<?> cleanEvents(Request request) {
+        final String maxAgeDaysParam = request.param(MAX_AGE_DAYS_PARAM);
+        int maxAgeDays = Constants.EVENT_MAX_AGE_DAYS;
+        if (maxAgeDaysParam != null) {
+            try {
+                maxAgeDays = Integer.parseInt(maxAgeDaysParam);
+            } catch (NumberFormatException e) {
+                maxAgeDays = 0;
+            }
+            if (maxAgeDays <= 0) {
+                // Every event would be deleted.
+                logger.warning("Invalid maximum event age: " + maxAgeDaysParam);
+                return Reply.saying().error();
+            }
+        }
+        
+        logger.info("Start deleting events older than " + maxAgeDays + " days");
+        CleanEventsQueue.start(maintenanceQueue, maxAgeDays);
+        
+        return Reply.saying().ok();
+    }
+}
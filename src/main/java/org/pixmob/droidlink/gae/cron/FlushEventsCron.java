@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.cron;
+
+import java.util.logging.Logger;
+
+import org.pixmob.droidlink.gae.Constants;
+import org.pixmob.droidlink.gae.service.DeviceService;
+
+import com.google.inject.Inject;
+import com.google.sitebricks.At;
+import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Service;
+import com.google.sitebricks.http.Get;
+
+/**
+ * Write buffered events to the datastore. Batches of events are written until
+ * the buffer is empty, or until the time allowed for this job is elapsed.
+ * @author Pixmob
+ */
+@At(FlushEventsCron.URI)
+@Service
+public class FlushEventsCron {
+    public static final String URI = "/cron/flush-events";
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final DeviceService deviceService;
+    
+    @Inject
+    FlushEventsCron(final DeviceService deviceService) {
+        this.deviceService = deviceService;
+    }
+    
+    @Get
+    public Reply<?> flushEvents() {
+        final long deadline = System.currentTimeMillis() + Constants.EVENT_BUFFER_FLUSH_TIME;
+        int total = 0;
+        int count;
+        do {
+            count = deviceService.flushEvents(Constants.EVENT_BUFFER_BATCH_SIZE);
+            total += count;
+        } while (count == Constants.EVENT_BUFFER_BATCH_SIZE
+                && System.currentTimeMillis() < deadline);
+        
+        if (total != 0) {
+            logger.info("Buffered events written: " + total);
+        }
+        
+        return Reply.saying().ok();
+    }
+}
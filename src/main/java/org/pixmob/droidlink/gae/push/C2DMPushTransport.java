@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.push;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.pixmob.droidlink.gae.Constants;
+
+import com.google.android.c2dm.server.C2DMessaging;
+import com.google.android.c2dm.server.InvalidRegistrationException;
+import com.google.android.c2dm.server.MessageRejectedException;
+import com.google.android.c2dm.server.PreparedMessage;
+import com.google.inject.Inject;
+
+/**
+ * {@link PushTransport} implementation using C2DM: a request is sent for each
+ * device. Requests are sent concurrently, with a bounded number of pending
+ * requests.
+ * @author Pixmob
+ */
+public class C2DMPushTransport implements PushTransport {
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final C2DMessaging c2dm;
+    
+    @Inject
+    C2DMPushTransport(final C2DMessaging c2dm) {
+        this.c2dm = c2dm;
+    }
+    
+    @Override
+    public Map<String, PushStatus> send(PushMessage message, Collection<String> registrationIds) {
+        final Map<String, PushStatus> statuses = new HashMap<String, PushStatus>(
+                registrationIds.size());
+        final LinkedList<PendingMessage> pendingMessages = new LinkedList<PendingMessage>();
+        
+        // The message is encoded once for every device.
+        final PreparedMessage preparedMessage;
+        try {
+            preparedMessage = prepare(message);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to encode C2DM message", e);
+            for (final String registrationId : registrationIds) {
+                statuses.put(registrationId, PushStatus.ERROR);
+            }
+            return statuses;
+        }
+        
+        for (final String registrationId : registrationIds) {
+            if (pendingMessages.size() >= Constants.PUSH_MAX_PENDING_REQUESTS) {
+                readResult(pendingMessages.removeFirst(), statuses);
+            }
+            
+            try {
+                pendingMessages.add(new PendingMessage(registrationId, c2dm.sendNoRetryAsync(
+                    registrationId, preparedMessage)));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to send C2DM message", e);
+                statuses.put(registrationId, PushStatus.RETRY);
+            }
+        }
+        
+        while (!pendingMessages.isEmpty()) {
+            readResult(pendingMessages.removeFirst(), statuses);
+        }
+        
+        return statuses;
+    }
+    
+    @Override
+    public void retry(PushMessage message, Collection<String> registrationIds) {
+        try {
+            c2dm.retry(registrationIds, prepare(message));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Failed to encode C2DM message", e);
+        }
+    }
+    
+    private PreparedMessage prepare(PushMessage message) throws IOException {
+        return c2dm.prepare(message.getCollapseKey(), toParams(message),
+            message.isDelayWhileIdle());
+    }
+    
+    private void readResult(PendingMessage message, Map<String, PushStatus> statuses) {
+        PushStatus status;
+        try {
+            status = message.result.get() ? PushStatus.SENT : PushStatus.RETRY;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = PushStatus.RETRY;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InvalidRegistrationException) {
+                status = PushStatus.UNREGISTERED;
+            } else if (e.getCause() instanceof MessageRejectedException) {
+                logger.log(Level.SEVERE, "C2DM message rejected", e.getCause());
+                status = PushStatus.ERROR;
+            } else {
+                // Transport failures, such as a deadline exceeded, and
+                // unreadable responses are temporary. Server errors and
+                // Retry-After responses are reported as a false result.
+                logger.log(Level.WARNING, "Failed to send C2DM message", e.getCause());
+                status = PushStatus.RETRY;
+            }
+        }
+        statuses.put(message.registrationId, status);
+    }
+    
+    private static Map<String, String[]> toParams(PushMessage message) {
+        final Map<String, String[]> params = new HashMap<String, String[]>(4);
+        for (final Map.Entry<String, String> e : message.getData().entrySet()) {
+            params.put("data." + e.getKey(), new String[] { e.getValue() });
+        }
+        return params;
+    }
+    
+    /**
+     * C2DM message waiting for a response.
+     * @author Pixmob
+     */
+    private static class PendingMessage {
+        public final String registrationId;
+        public final Future<Boolean> result;
+        
+        public PendingMessage(final String registrationId, final Future<Boolean> result) {
+            this.registrationId = registrationId;
+            this.result = result;
+        }
+    }
+}
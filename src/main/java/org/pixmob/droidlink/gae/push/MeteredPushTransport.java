@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.push;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.android.c2dm.server.C2DMMetrics;
+
+/**
+ * {@link PushTransport} decorator recording push metrics: delivery statuses
+ * are counted for each device, whatever the transport.
+ * @author Pixmob
+ */
+public class MeteredPushTransport implements PushTransport {
+    private final PushTransport transport;
+    private final C2DMMetrics metrics;
+    
+    public MeteredPushTransport(final PushTransport transport, final C2DMMetrics metrics) {
+        this.transport = transport;
+        this.metrics = metrics;
+    }
+    
+    @Override
+    public Map<String, PushStatus> send(PushMessage message, Collection<String> registrationIds) {
+        final long start = System.currentTimeMillis();
+        final Map<String, PushStatus> statuses = transport.send(message, registrationIds);
+        record(metrics, statuses, System.currentTimeMillis() - start);
+        return statuses;
+    }
+    
+    @Override
+    public void retry(PushMessage message, Collection<String> registrationIds) {
+        transport.retry(message, registrationIds);
+        metrics.add(C2DMMetrics.PUSH_RETRIES_ENQUEUED, registrationIds.size());
+    }
+    
+    /**
+     * Record the statuses of a message sent to devices. This method is used
+     * by retry paths, which send messages without this decorator.
+     * @param latency time spent sending the message, in milliseconds
+     */
+    static void record(C2DMMetrics metrics, Map<String, PushStatus> statuses, long latency) {
+        metrics.add(C2DMMetrics.PUSH_ATTEMPTS, statuses.size());
+        for (final PushStatus status : statuses.values()) {
+            metrics.increment(getMetricName(status));
+        }
+        metrics.pushLatency(latency);
+    }
+    
+    private static String getMetricName(PushStatus status) {
+        switch (status) {
+            case SENT:
+                return C2DMMetrics.PUSH_SENT;
+            case RETRY:
+                return C2DMMetrics.PUSH_RETRY;
+            case UNREGISTERED:
+                return C2DMMetrics.PUSH_UNREGISTERED;
+            default:
+                return C2DMMetrics.PUSH_ERROR;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.push;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.pixmob.droidlink.gae.Constants;
+
+import com.google.android.c2dm.server.HttpResult;
+import com.google.android.c2dm.server.HttpSender;
+import com.google.android.c2dm.server.RetryScheduler;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * {@link PushTransport} implementation sending a message to several devices
+ * with a single request. Requests are JSON documents posted to a configurable
+ * endpoint: a stub server may be used instead of the push server.
+ * @author Pixmob
+ */
+public class MulticastPushTransport implements PushTransport {
+    static final String REGISTRATION_IDS = "registration_ids";
+    static final String COLLAPSE_KEY = "collapse_key";
+    static final String DELAY_WHILE_IDLE = "delay_while_idle";
+    static final String DATA = "data";
+    static final String RESULTS = "results";
+    static final String MESSAGE_ID = "message_id";
+    static final String ERROR = "error";
+    private static final String UNAVAILABLE_ERROR = "Unavailable";
+    private static final String INTERNAL_SERVER_ERROR = "InternalServerError";
+    private static final String INVALID_REGISTRATION_ERROR = "InvalidRegistration";
+    private static final String NOT_REGISTERED_ERROR = "NotRegistered";
+    private static final int MAX_TASKS_PER_ADD = 100;
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpSender httpSender;
+    private final Queue retryQueue;
+    private final String endpoint;
+    private final String apiKey;
+    private final int batchSize;
+    private final RetryScheduler retryScheduler;
+    
+    /**
+     * Create a new instance.
+     * @param retryQueue queue for messages to send again
+     * @param endpoint URL where requests are sent
+     * @param apiKey key used for authenticating requests, or
+     *            <code>null</code>
+     * @param batchSize maximum number of devices in a request
+     */
+    public MulticastPushTransport(final HttpSender httpSender, final Queue retryQueue,
+            final String endpoint, final String apiKey, final int batchSize) {
+        this.httpSender = httpSender;
+        this.retryQueue = retryQueue;
+        this.endpoint = endpoint;
+        this.apiKey = apiKey;
+        this.batchSize = batchSize;
+        this.retryScheduler = new RetryScheduler(httpSender, endpoint,
+                Constants.PUSH_RETRY_DELAY, Constants.PUSH_MAX_RETRY_DELAY);
+    }
+    
+    @Override
+    public Map<String, PushStatus> send(PushMessage message, Collection<String> registrationIds) {
+        final List<String> ids = new ArrayList<String>(registrationIds);
+        final Map<String, PushStatus> statuses = new HashMap<String, PushStatus>(ids.size());
+        final LinkedList<PendingBatch> pendingBatches = new LinkedList<PendingBatch>();
+        
+        for (int i = 0; i < ids.size(); i += batchSize) {
+            if (pendingBatches.size() >= Constants.PUSH_MAX_PENDING_REQUESTS) {
+                readResult(pendingBatches.removeFirst(), statuses);
+            }
+            
+            final List<String> batch = ids.subList(i, Math.min(i + batchSize, ids.size()));
+            try {
+                pendingBatches.add(new PendingBatch(batch, httpSender.postAsync(endpoint,
+                    newHeaders(), encodeMessage(message, batch))));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to send push message", e);
+                setStatus(batch, PushStatus.RETRY, statuses);
+            }
+        }
+        
+        while (!pendingBatches.isEmpty()) {
+            readResult(pendingBatches.removeFirst(), statuses);
+        }
+        
+        return statuses;
+    }
+    
+    @Override
+    public void retry(PushMessage message, Collection<String> registrationIds) {
+        retry(message, registrationIds, 1);
+    }
+    
+    /**
+     * Schedule a message for sending it again later. The delay grows
+     * exponentially with each attempt, with full jitter. Registration
+     * identifiers are split into tasks of at most
+     * {@link Constants#PUSH_MAX_RETRY_IDS_PER_TASK} devices, whatever the
+     * batch size: a task must fit in the task size limit.
+     * @param attempt attempt number, starting from 1
+     */
+    void retry(PushMessage message, Collection<String> registrationIds, int attempt) {
+        if (registrationIds.isEmpty()) {
+            return;
+        }
+        
+        final int idsPerTask = Math.min(batchSize, Constants.PUSH_MAX_RETRY_IDS_PER_TASK);
+        final List<String> ids = new ArrayList<String>(registrationIds);
+        final List<TaskOptions> tasks = new ArrayList<TaskOptions>(1);
+        for (int i = 0; i < ids.size(); i += idsPerTask) {
+            final TaskOptions task = withUrl(MulticastRetryServlet.URI)
+                    .param(MulticastRetryServlet.ATTEMPT_PARAM, String.valueOf(attempt))
+                    .param(COLLAPSE_KEY, message.getCollapseKey())
+                    .countdownMillis(retryScheduler.getDelay(attempt));
+            if (message.isDelayWhileIdle()) {
+                task.param(DELAY_WHILE_IDLE, "1");
+            }
+            for (final Map.Entry<String, String> e : message.getData().entrySet()) {
+                task.param(DATA + "." + e.getKey(), e.getValue());
+            }
+            for (final String registrationId : ids.subList(i,
+                Math.min(i + idsPerTask, ids.size()))) {
+                task.param(REGISTRATION_IDS, registrationId);
+            }
+            tasks.add(task);
+            if (tasks.size() == MAX_TASKS_PER_ADD) {
+                retryQueue.add(tasks);
+                tasks.clear();
+            }
+        }
+        if (!tasks.isEmpty()) {
+            retryQueue.add(tasks);
+        }
+    }
+    
+    private Map<String, String> newHeaders() {
+        final Map<String, String> headers = new LinkedHashMap<String, String>(2);
+        headers.put("Content-Type", Constants.JSON_MIME_TYPE);
+        if (apiKey != null) {
+            headers.put("Authorization", "key=" + apiKey);
+        }
+        return headers;
+    }
+    
+    private byte[] encodeMessage(PushMessage message, List<String> registrationIds)
+            throws IOException {
+        final Map<String, Object> json = new LinkedHashMap<String, Object>(4);
+        json.put(REGISTRATION_IDS, registrationIds);
+        json.put(COLLAPSE_KEY, message.getCollapseKey());
+        json.put(DELAY_WHILE_IDLE, message.isDelayWhileIdle());
+        json.put(DATA, message.getData());
+        return mapper.writeValueAsString(json).getBytes("UTF-8");
+    }
+    
+    private void readResult(PendingBatch batch, Map<String, PushStatus> statuses) {
+        final HttpResult result;
+        try {
+            result = batch.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            setStatus(batch.registrationIds, PushStatus.RETRY, statuses);
+            return;
+        } catch (ExecutionException e) {
+            logger.log(Level.WARNING, "Failed to send push message", e.getCause());
+            setStatus(batch.registrationIds, PushStatus.RETRY, statuses);
+            return;
+        }
+        
+        final int status = result.getStatus();
+        if (status >= 500) {
+            logger.warning("Push server error: " + status);
+            setStatus(batch.registrationIds, PushStatus.RETRY, statuses);
+            return;
+        }
+        if (status != 200) {
+            logger.severe("Push message rejected: " + status);
+            setStatus(batch.registrationIds, PushStatus.ERROR, statuses);
+            return;
+        }
+        
+        final JsonNode results;
+        try {
+            results = mapper.readTree(new String(result.getContent(), "UTF-8")).path(RESULTS);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Invalid response from push server", e);
+            setStatus(batch.registrationIds, PushStatus.RETRY, statuses);
+            return;
+        }
+        
+        // Results are in the same order as registration identifiers.
+        for (int i = 0; i < batch.registrationIds.size(); ++i) {
+            final JsonNode deviceResult = results.path(i);
+            final PushStatus deviceStatus;
+            if (deviceResult.has(MESSAGE_ID)) {
+                deviceStatus = PushStatus.SENT;
+            } else {
+                final String error = deviceResult.path(ERROR).getTextValue();
+                if (error == null || UNAVAILABLE_ERROR.equals(error)
+                        || INTERNAL_SERVER_ERROR.equals(error)) {
+                    deviceStatus = PushStatus.RETRY;
+                } else if (INVALID_REGISTRATION_ERROR.equals(error)
+                        || NOT_REGISTERED_ERROR.equals(error)) {
+                    deviceStatus = PushStatus.UNREGISTERED;
+                } else {
+                    logger.warning("Push message error: " + error);
+                    deviceStatus = PushStatus.ERROR;
+                }
+            }
+            statuses.put(batch.registrationIds.get(i), deviceStatus);
+        }
+    }
+    
+    private static void setStatus(List<String> registrationIds, PushStatus status,
+            Map<String, PushStatus> statuses) {
+        for (final String registrationId : registrationIds) {
+            statuses.put(registrationId, status);
+        }
+    }
+    
+    /**
+     * Request waiting for a response.
+     * @author Pixmob
+     */
+    private static class PendingBatch {
+        public final List<String> registrationIds;
+        public final Future<HttpResult> result;
+        
+        public PendingBatch(final List<String> registrationIds, final Future<HttpResult> result) {
+            this.registrationIds = registrationIds;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.push;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.android.c2dm.server.C2DMMetrics;
+import com.google.android.c2dm.server.InvalidRegistrationHandler;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Task sending again a message with {@link MulticastPushTransport}. Devices
+ * for which the message could not be sent are scheduled for another attempt,
+ * until the maximum number of attempts is reached.
+ * @author Pixmob
+ */
+@Singleton
+public class MulticastRetryServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    public static final String URI = "/tasks/push-retry";
+    public static final String ATTEMPT_PARAM = "attempt";
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String DATA_PREFIX = MulticastPushTransport.DATA + ".";
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final MulticastPushTransport transport;
+    private final InvalidRegistrationHandler invalidRegistrationHandler;
+    private final C2DMMetrics metrics;
+    
+    @Inject
+    MulticastRetryServlet(final MulticastPushTransport transport,
+            final InvalidRegistrationHandler invalidRegistrationHandler,
+            final C2DMMetrics metrics) {
+        this.transport = transport;
+        this.invalidRegistrationHandler = invalidRegistrationHandler;
+        this.metrics = metrics;
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        final int attempt = Integer.parseInt(req.getParameter(ATTEMPT_PARAM));
+        final String[] registrationIds = req
+                .getParameterValues(MulticastPushTransport.REGISTRATION_IDS);
+        if (registrationIds == null) {
+            resp.setStatus(HttpServletResponse.SC_OK);
+            return;
+        }
+        
+        final Map<String, String> data = new LinkedHashMap<String, String>(4);
+        for (final Object name : req.getParameterMap().keySet()) {
+            final String paramName = (String) name;
+            if (paramName.startsWith(DATA_PREFIX)) {
+                data.put(paramName.substring(DATA_PREFIX.length()), req.getParameter(paramName));
+            }
+        }
+        final PushMessage message = new PushMessage(
+                req.getParameter(MulticastPushTransport.COLLAPSE_KEY), data,
+                req.getParameter(MulticastPushTransport.DELAY_WHILE_IDLE) != null);
+        
+        final long start = System.currentTimeMillis();
+        final Map<String, PushStatus> statuses = transport.send(message,
+            Arrays.asList(registrationIds));
+        MeteredPushTransport.record(metrics, statuses, System.currentTimeMillis() - start);
+        final List<String> retries = new ArrayList<String>(registrationIds.length);
+        for (final Map.Entry<String, PushStatus> e : statuses.entrySet()) {
+            if (PushStatus.RETRY.equals(e.getValue())) {
+                retries.add(e.getKey());
+            } else if (PushStatus.UNREGISTERED.equals(e.getValue())) {
+                invalidRegistrationHandler.onInvalidRegistration(e.getKey());
+            }
+        }
+        
+        if (!retries.isEmpty()) {
+            if (attempt < MAX_ATTEMPTS) {
+                transport.retry(message, retries, attempt + 1);
+                metrics.add(C2DMMetrics.PUSH_RETRIES_ENQUEUED, retries.size());
+            } else {
+                logger.severe("Too many attempts: push message dropped for " + retries.size()
+                        + " device(s)");
+                metrics.add(C2DMMetrics.PUSH_RETRIES_DROPPED, retries.size());
+            }
+        }
+        resp.setStatus(HttpServletResponse.SC_OK);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.push;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Push message, sent to one or several devices.
+ * @author Pixmob
+ */
+public class PushMessage {
+    private final String collapseKey;
+    private final Map<String, String> data;
+    private final boolean delayWhileIdle;
+    
+    /**
+     * Create a new instance.
+     * @param collapseKey messages with the same collapse key replace each
+     *            other when a device is not connected
+     * @param data message data
+     * @param delayWhileIdle if <code>true</code>, the message is not sent
+     *            until the device is active
+     */
+    public PushMessage(final String collapseKey, final Map<String, String> data,
+            final boolean delayWhileIdle) {
+        this.collapseKey = collapseKey;
+        this.data = Collections.unmodifiableMap(new LinkedHashMap<String, String>(data));
+        this.delayWhileIdle = delayWhileIdle;
+    }
+    
+    public String getCollapseKey() {
+        return collapseKey;
+    }
+    
+    public Map<String, String> getData() {
+        return data;
+    }
+    
+    public boolean isDelayWhileIdle() {
+        return delayWhileIdle;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.push;
+
+import com.google.android.c2dm.server.C2DMMetrics;
+import com.google.android.c2dm.server.HttpSender;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.inject.Provider;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.servlet.ServletModule;
+
+/**
+ * Push package configuration. The push transport is selected with a system
+ * property, and is decorated with {@link MeteredPushTransport}.
+ * @author Pixmob
+ */
+public class PushModule extends ServletModule {
+    /**
+     * System property for the push transport: <code>c2dm</code> (default) or
+     * <code>multicast</code>.
+     */
+    public static final String TRANSPORT_PROPERTY = "droidlink.push.transport";
+    /**
+     * System property for the URL where multicast requests are sent.
+     */
+    public static final String MULTICAST_URL_PROPERTY = "droidlink.push.multicastUrl";
+    /**
+     * System property for the key authenticating multicast requests.
+     */
+    public static final String MULTICAST_API_KEY_PROPERTY = "droidlink.push.apiKey";
+    /**
+     * System property for the maximum number of devices in a multicast
+     * request.
+     */
+    public static final String MULTICAST_BATCH_SIZE_PROPERTY = "droidlink.push.batchSize";
+    /**
+     * System property for enabling the stub push server.
+     */
+    public static final String STUB_PROPERTY = "droidlink.push.enableStub";
+    /**
+     * System property for the latency of the stub push server, in
+     * milliseconds.
+     */
+    public static final String STUB_LATENCY_PROPERTY = "droidlink.push.stubLatency";
+    private static final String MULTICAST_TRANSPORT = "multicast";
+    private static final String DEFAULT_MULTICAST_URL = "https://android.googleapis.com/gcm/send";
+    private static final int DEFAULT_MULTICAST_BATCH_SIZE = 1000;
+    
+    @Override
+    protected void configureServlets() {
+        serve(MulticastRetryServlet.URI).with(MulticastRetryServlet.class);
+        
+        if (Boolean.getBoolean(STUB_PROPERTY)) {
+            serve(StubPushServlet.URI).with(StubPushServlet.class);
+        }
+    }
+    
+    @Provides
+    @Singleton
+    public PushTransport getPushTransport(Provider<C2DMPushTransport> c2dmTransport,
+            Provider<MulticastPushTransport> multicastTransport, C2DMMetrics metrics) {
+        final PushTransport transport;
+        if (MULTICAST_TRANSPORT.equals(System.getProperty(TRANSPORT_PROPERTY))) {
+            transport = multicastTransport.get();
+        } else {
+            transport = c2dmTransport.get();
+        }
+        return new MeteredPushTransport(transport, metrics);
+    }
+    
+    @Provides
+    @Singleton
+    public MulticastPushTransport getMulticastPushTransport(HttpSender httpSender,
+            @Named("c2dm") Queue retryQueue) {
+        final String endpoint = System.getProperty(MULTICAST_URL_PROPERTY, DEFAULT_MULTICAST_URL);
+        final String apiKey = System.getProperty(MULTICAST_API_KEY_PROPERTY);
+        final int batchSize = Integer.getInteger(MULTICAST_BATCH_SIZE_PROPERTY,
+            DEFAULT_MULTICAST_BATCH_SIZE);
+        return new MulticastPushTransport(httpSender, retryQueue, endpoint, apiKey, batchSize);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.push;
+
+/**
+ * Delivery status of a push message for a device.
+ * @author Pixmob
+ */
+public enum PushStatus {
+    /**
+     * The message was accepted by the push server.
+     */
+    SENT,
+    /**
+     * The message was not sent because of a temporary error: the message
+     * should be sent again later.
+     */
+    RETRY,
+    /**
+     * The message was not sent because of a permanent error.
+     */
+    ERROR,
+    /**
+     * The message was not sent because the registration identifier is no
+     * longer valid: messages should not be sent to this registration anymore.
+     */
+    UNREGISTERED
+}
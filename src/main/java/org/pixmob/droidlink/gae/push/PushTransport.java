@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.push;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Transport for sending push messages to devices. Implementations must be
+ * thread-safe.
+ * @author Pixmob
+ */
+public interface PushTransport {
+    /**
+     * Send a message to devices, and wait for the push server responses.
+     * @param registrationIds device registration identifiers
+     * @return delivery status by registration identifier
+     */
+    Map<String, PushStatus> send(PushMessage message, Collection<String> registrationIds);
+    
+    /**
+     * Schedule a message for sending it again later to devices.
+     * @param registrationIds device registration identifiers
+     */
+    void retry(PushMessage message, Collection<String> registrationIds);
+}
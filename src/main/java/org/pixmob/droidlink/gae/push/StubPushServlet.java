@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.push;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.pixmob.droidlink.gae.Constants;
+
+import com.google.inject.Singleton;
+
+/**
+ * Stub push server, accepting every message sent with
+ * {@link MulticastPushTransport}. This servlet is only enabled for load tests:
+ * set the multicast endpoint to this servlet in order to measure push fan-out
+ * without reaching the push server. An optional latency may be added to
+ * every response.
+ * @author Pixmob
+ */
+@Singleton
+public class StubPushServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    public static final String URI = "/stub/push";
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong messageIds = new AtomicLong();
+    private final long latency;
+    
+    public StubPushServlet() {
+        latency = Long.getLong(PushModule.STUB_LATENCY_PROPERTY, 0);
+    }
+    
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        final JsonNode registrationIds = mapper.readTree(req.getInputStream()).path(
+            MulticastPushTransport.REGISTRATION_IDS);
+        
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        final List<Map<String, String>> results = new ArrayList<Map<String, String>>(
+                registrationIds.size());
+        for (int i = 0; i < registrationIds.size(); ++i) {
+            results.add(Collections.singletonMap(MulticastPushTransport.MESSAGE_ID, "stub:"
+                    + messageIds.incrementAndGet()));
+        }
+        final Map<String, Object> json = new LinkedHashMap<String, Object>(4);
+        json.put("success", results.size());
+        json.put("failure", 0);
+        json.put(MulticastPushTransport.RESULTS, results);
+        
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(Constants.JSON_MIME_TYPE);
+        resp.setCharacterEncoding("UTF-8");
+        mapper.writeValue(resp.getWriter(), json);
+    }
+}
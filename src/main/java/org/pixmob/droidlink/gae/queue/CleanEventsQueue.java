@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.queue;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import java.util.logging.Logger;
+
+import org.pixmob.droidlink.gae.Constants;
+import org.pixmob.droidlink.gae.service.DeviceService;
+import org.pixmob.droidlink.gae.service.Page;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.sitebricks.At;
+import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Request;
+import com.google.sitebricks.headless.Service;
+import com.google.sitebricks.http.Post;
+
+/**
+ * Delete expired events, device after device. Each task handles a page of
+ * devices, and deletes a limited number of events: when a limit is reached,
+ * the next task is queued.
+ * @author Pixmob
+ */
+@At(CleanEventsQueue.URI)
+@Service
+public class CleanEventsQueue {
+    public static final String URI = "/tasks/clean-events";
+    public static final String MAX_AGE_DAYS_PARAM = "days";
+    public static final String CURSOR_PARAM = "cursor";
+    public static final String DEVICE_ID_PARAM = "deviceId";
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final DeviceService deviceService;
+    private final Queue maintenanceQueue;
+    
+    @Inject
+    CleanEventsQueue(final DeviceService deviceService,
+            @Named("maintenance") final Queue maintenanceQueue) {
+        this.deviceService = deviceService;
+        this.maintenanceQueue = maintenanceQueue;
+    }
+    
+    @Post
+    public Reply<?> cleanEvents(Request request) {
+        final int maxAgeDays = Integer.parseInt(request.param(MAX_AGE_DAYS_PARAM));
+        final String cursor = request.param(CURSOR_PARAM);
+        final String firstDeviceId = request.param(DEVICE_ID_PARAM);
+        logger.info("Clean events older than " + maxAgeDays + " days (cursor=" + cursor
+                + ", deviceId=" + firstDeviceId + ")");
+        
+        final Page<String> deviceIds = deviceService.getDeviceIds(cursor,
+            Constants.CLEAN_EVENTS_DEVICES_PER_TASK);
+        int remainingEvents = Constants.CLEAN_EVENTS_MAX_EVENTS_PER_TASK;
+        for (final String deviceId : deviceIds) {
+            // Devices which were cleaned by the previous task are skipped:
+            // device identifiers are sorted.
+            if (firstDeviceId != null && deviceId.compareTo(firstDeviceId) < 0) {
+                continue;
+            }
+            
+            remainingEvents -= deviceService.cleanEvents(deviceId, maxAgeDays * DAY,
+                remainingEvents);
+            if (remainingEvents == 0) {
+                // This device may have more expired events: the next task
+                // starts with it.
+                queueNextTask(maxAgeDays, cursor, deviceId);
+                return Reply.saying().ok();
+            }
+        }
+        
+        if (deviceIds.getCursor() != null) {
+            queueNextTask(maxAgeDays, deviceIds.getCursor(), null);
+        } else {
+            logger.info("Expired events deleted");
+        }
+        
+        return Reply.saying().ok();
+    }
+    
+    /**
+     * Queue the first task.
+     * @param maxAgeDays maximum event age, in days
+     */
+    public static void start(Queue queue, int maxAgeDays) {
+        queue.add(withUrl(URI).param(MAX_AGE_DAYS_PARAM, String.valueOf(maxAgeDays)));
+    }
+    
+    private void queueNextTask(int maxAgeDays, String cursor, String deviceId) {
+        final TaskOptions taskOptions = withUrl(URI).param(MAX_AGE_DAYS_PARAM,
+            String.valueOf(maxAgeDays));
+        if (cursor != null) {
+            taskOptions.param(CURSOR_PARAM, cursor);
+        }
+        if (deviceId != null) {
+            taskOptions.param(DEVICE_ID_PARAM, deviceId);
+        }
+        maintenanceQueue.add(taskOptions);
+    }
+}
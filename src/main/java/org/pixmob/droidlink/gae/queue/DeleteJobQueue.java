@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.queue;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import java.util.logging.Logger;
+
+import org.pixmob.droidlink.gae.service.DeleteJob;
+import org.pixmob.droidlink.gae.service.DeviceService;
+import org.pixmob.droidlink.gae.service.JobNotFoundException;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.sitebricks.At;
+import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Request;
+import com.google.sitebricks.headless.Service;
+import com.google.sitebricks.http.Post;
+
+/**
+ * Run a delete job. Each task deletes a batch of events, and queues the next
+ * task until the job is done. Tasks carry the step they run: a task which is
+ * run again once its step is done has no effect.
+ * @author Pixmob
+ */
+@At(DeleteJobQueue.URI)
+@Service
+public class DeleteJobQueue {
+    public static final String URI = "/tasks/delete-job";
+    public static final String JOB_ID_PARAM = "job";
+    public static final String STEP_PARAM = "step";
+    private static final int BATCH_SIZE = 200;
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final DeviceService deviceService;
+    private final Queue deleteQueue;
+    
+    @Inject
+    DeleteJobQueue(final DeviceService deviceService, @Named("delete") final Queue deleteQueue) {
+        this.deviceService = deviceService;
+        this.deleteQueue = deleteQueue;
+    }
+    
+    @Post
+    public Reply<?> runJob(Request request) {
+        final long jobId = Long.parseLong(request.param(JOB_ID_PARAM));
+        final int step = Integer.parseInt(request.param(STEP_PARAM));
+        
+        final DeleteJob job;
+        try {
+            job = deviceService.runDeleteJob(jobId, step, BATCH_SIZE, deleteQueue, newTask(jobId,
+                step + 1));
+        } catch (JobNotFoundException e) {
+            logger.warning("Delete job not found: " + jobId);
+            return Reply.saying().ok();
+        }
+        
+        if (job.done && job.step == step + 1) {
+            logger.info("Delete job " + jobId + " done: " + job.deleted + " events deleted");
+        }
+        
+        return Reply.saying().ok();
+    }
+    
+    /**
+     * Queue a task for running a delete job, if this job is not done.
+     */
+    public static void start(Queue queue, DeleteJob job) {
+        if (!job.done) {
+            queue.add(newTask(job.id, job.step));
+        }
+    }
+    
+    private static TaskOptions newTask(long jobId, int step) {
+        return withUrl(URI).param(JOB_ID_PARAM, String.valueOf(jobId)).param(STEP_PARAM,
+            String.valueOf(step));
+    }
+}
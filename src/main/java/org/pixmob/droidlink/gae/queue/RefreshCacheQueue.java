@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.queue;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.pixmob.droidlink.gae.service.DeviceService;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.sitebricks.At;
+import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Request;
+import com.google.sitebricks.headless.Service;
+import com.google.sitebricks.http.Post;
+
+/**
+ * Refresh cached entities in background: entities are removed from the cache
+ * and read again, by batches. Entities are selected by user, by device or by
+ * kind. A user is refreshed with a task for each device.
+ * @author Pixmob
+ */
+@At(RefreshCacheQueue.URI)
+@Service
+public class RefreshCacheQueue {
+    public static final String URI = "/tasks/refresh-cache";
+    public static final String USER_PARAM = "user";
+    public static final String DEVICE_ID_PARAM = "deviceId";
+    public static final String KIND_PARAM = "kind";
+    public static final String CURSOR_PARAM = "cursor";
+    private static final int BATCH_SIZE = 200;
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final DeviceService deviceService;
+    private final Queue cacheQueue;
+    
+    @Inject
+    RefreshCacheQueue(final DeviceService deviceService, @Named("cache") final Queue cacheQueue) {
+        this.deviceService = deviceService;
+        this.cacheQueue = cacheQueue;
+    }
+    
+    @Post
+    public Reply<?> refresh(Request request) {
+        final String user = request.param(USER_PARAM);
+        final String deviceId = request.param(DEVICE_ID_PARAM);
+        final String kind = request.param(KIND_PARAM);
+        final String cursor = request.param(CURSOR_PARAM);
+        
+        if (user != null) {
+            final List<TaskOptions> tasks = new ArrayList<TaskOptions>(4);
+            for (final String userDeviceId : deviceService.getUserDeviceIds(user)) {
+                tasks.add(withUrl(URI).param(DEVICE_ID_PARAM, userDeviceId));
+            }
+            logger.info("Refresh cache for user " + user + ": " + tasks.size() + " devices");
+            if (!tasks.isEmpty()) {
+                cacheQueue.add(tasks);
+            }
+        } else if (deviceId != null) {
+            final String nextCursor = deviceService.refreshDeviceCache(deviceId, cursor,
+                BATCH_SIZE);
+            if (nextCursor != null) {
+                cacheQueue.add(withUrl(URI).param(DEVICE_ID_PARAM, deviceId).param(
+                    CURSOR_PARAM, nextCursor));
+            } else {
+                logger.info("Cache refreshed for device " + deviceId);
+            }
+        } else if (kind != null) {
+            final String nextCursor = deviceService.refreshCache(kind, cursor, BATCH_SIZE);
+            if (nextCursor != null) {
+                cacheQueue.add(withUrl(URI).param(KIND_PARAM, kind).param(CURSOR_PARAM,
+                    nextCursor));
+            } else {
+                logger.info("Cache refreshed for kind " + kind);
+            }
+        } else {
+            logger.warning("Missing cache refresh scope");
+        }
+        
+        return Reply.saying().ok();
+    }
+    
+    /**
+     * Queue a task for refreshing cached entities.
+     * @param scope one of {@link #USER_PARAM}, {@link #DEVICE_ID_PARAM} or
+     *            {@link #KIND_PARAM}
+     */
+    public static void start(Queue queue, String scope, String value) {
+        queue.add(withUrl(URI).param(scope, value));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.queue;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+
+import java.util.logging.Logger;
+
+import org.pixmob.droidlink.gae.service.DeviceService;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.sitebricks.At;
+import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Request;
+import com.google.sitebricks.headless.Service;
+import com.google.sitebricks.http.Post;
+
+/**
+ * Write again every event to the datastore, in order to update indexes. Events
+ * are written by batches: each task handles a single batch, and queues the next
+ * one. An administrator starts the process by posting to this URI.
+ * @author Pixmob
+ */
+@At(ReindexEventsQueue.URI)
+@Service
+public class ReindexEventsQueue {
+    public static final String URI = "/tasks/reindex-events";
+    public static final String CURSOR_PARAM = "cursor";
+    private static final int BATCH_SIZE = 100;
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final DeviceService deviceService;
+    private final Queue maintenanceQueue;
+    
+    @Inject
+    ReindexEventsQueue(final DeviceService deviceService,
+            @Named("maintenance") final Queue maintenanceQueue) {
+        this.deviceService = deviceService;
+        this.maintenanceQueue = maintenanceQueue;
+    }
+    
+    @Post
+    public Reply<?> reindex(Request request) {
+        final String cursor = request.param(CURSOR_PARAM);
+        logger.info("Reindex events (cursor=" + cursor + ")");
+        
+        final String nextCursor = deviceService.reindexEvents(cursor, BATCH_SIZE);
+        if (nextCursor != null) {
+            maintenanceQueue.add(withUrl(URI).param(CURSOR_PARAM, nextCursor));
+        } else {
+            logger.info("Events reindexed");
+        }
+        
+        return Reply.saying().ok();
+    }
+}
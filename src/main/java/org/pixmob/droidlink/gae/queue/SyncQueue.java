@@ -15,13 +15,24 @@
  */
 package org.pixmob.droidlink.gae.queue;
 
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.logging.Logger;
 
+import org.pixmob.droidlink.gae.Constants;
 import org.pixmob.droidlink.gae.service.PushService;
 
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.inject.Inject;
 import com.google.sitebricks.At;
 import com.google.sitebricks.headless.Reply;
@@ -30,7 +41,9 @@ import com.google.sitebricks.headless.Service;
 import com.google.sitebricks.http.Post;
 
 /**
- * Send push notification to user devices.
+ * Send push notification to user devices. Sync triggers for a user are
+ * coalesced within a time window: a single task is run at the end of the
+ * window, with the latest sync token.
  * @author Pixmob
  */
 @At(SyncQueue.URI)
@@ -40,12 +53,18 @@ public class SyncQueue {
     public static final String USER_PARAM = "user";
     public static final String DEVICE_ID_SOURCE_PARAM = "deviceIdSource";
     public static final String SYNC_TOKEN_PARAM = "token";
+    public static final String WINDOW_PARAM = "window";
+    private static final String KEY_PREFIX = "sync:";
+    private static final String ALL_DEVICES = "";
+    private static final String MIXED_DEVICES = "*";
     private final Logger logger = Logger.getLogger(getClass().getName());
     private final PushService pushService;
+    private final MemcacheService memcacheService;
     
     @Inject
-    SyncQueue(final PushService pushService) {
+    SyncQueue(final PushService pushService, final MemcacheService memcacheService) {
         this.pushService = pushService;
+        this.memcacheService = memcacheService;
     }
     
     @Post
@@ -54,12 +73,109 @@ public class SyncQueue {
         checkNotNull(user, "User is required");
         checkArgument(user.length() != 0, "User is required");
         
-        final String deviceIdSource = request.param(DEVICE_ID_SOURCE_PARAM);
-        final String syncToken = request.param(SYNC_TOKEN_PARAM);
+        String deviceIdSource = request.param(DEVICE_ID_SOURCE_PARAM);
+        String syncToken = request.param(SYNC_TOKEN_PARAM);
+        
+        final String window = request.param(WINDOW_PARAM);
+        if (window != null) {
+            // The latest sync token and the device source are read from
+            // coalesced triggers.
+            final String latestSyncToken = getSyncToken(memcacheService, user, window);
+            if (latestSyncToken != null) {
+                syncToken = latestSyncToken;
+            }
+            deviceIdSource = getDeviceIdSource(memcacheService, user, window);
+        }
         
         logger.info("Sync devices for user " + user + " (deviceIdSource=" + deviceIdSource + ")");
         pushService.syncDevices(user, deviceIdSource, syncToken);
         
         return Reply.saying().ok();
     }
+    
+    /**
+     * Trigger a sync for user devices. Triggers for the same user in the same
+     * time window result in a single task, named after the user and the
+     * window. This task is run at the end of the window.
+     * @param deviceIdSource device which triggered the sync (this device is
+     *            not synchronized), or <code>null</code>
+     * @param token sync token, or <code>null</code>
+     */
+    public static void trigger(Queue queue, MemcacheService memcacheService, String user,
+            String deviceIdSource, String token) {
+        final long now = System.currentTimeMillis();
+        final long windowSize = Constants.SYNC_WINDOW;
+        final long windowIndex = now / windowSize;
+        final String window = String.valueOf(windowIndex);
+        final long countdown = (windowIndex + 1) * windowSize - now;
+        
+        // Coalesced triggers are kept a bit longer than the window, until
+        // the task is run.
+        final String key = getKey(user, window);
+        final Expiration expiration = Expiration.byDeltaMillis((int) (countdown + windowSize
+                + Constants.SYNC_STATE_TTL));
+        if (token != null) {
+            memcacheService.put(key + ":token", token, expiration);
+        }
+        final String source = deviceIdSource == null ? ALL_DEVICES : deviceIdSource;
+        final String sourceKey = key + ":source";
+        if (!memcacheService.put(sourceKey, source, expiration,
+            SetPolicy.ADD_ONLY_IF_NOT_PRESENT) && !source.equals(memcacheService.get(sourceKey))) {
+            // Triggers from different devices: every device is synchronized.
+            memcacheService.put(sourceKey, MIXED_DEVICES, expiration);
+        }
+        
+        final TaskOptions taskOptions = withUrl(URI)
+                .taskName("sync-" + hash(user) + "-" + window).countdownMillis(countdown)
+                .param(USER_PARAM, user).param(WINDOW_PARAM, window);
+        if (token != null) {
+            taskOptions.param(SYNC_TOKEN_PARAM, token);
+        }
+        try {
+            queue.add(taskOptions);
+        } catch (TaskAlreadyExistsException e) {
+            // This trigger is coalesced with the task already queued.
+        }
+    }
+    
+    /**
+     * Get the latest sync token from the triggers coalesced in a time window.
+     * @return <code>null</code> if there is no token
+     */
+    static String getSyncToken(MemcacheService memcacheService, String user, String window) {
+        return (String) memcacheService.get(getKey(user, window) + ":token");
+    }
+    
+    /**
+     * Get the device which triggered every sync coalesced in a time window.
+     * @return <code>null</code> if every device must be synchronized: the
+     *         triggers came from several devices, or this value was evicted
+     */
+    static String getDeviceIdSource(MemcacheService memcacheService, String user,
+            String window) {
+        final String source = (String) memcacheService.get(getKey(user, window) + ":source");
+        return source == null || ALL_DEVICES.equals(source) || MIXED_DEVICES.equals(source) ? null
+                : source;
+    }
+    
+    private static String getKey(String user, String window) {
+        return KEY_PREFIX + user + ":" + window;
+    }
+    
+    private static String hash(String user) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                user.getBytes("UTF-8"));
+            final StringBuilder buf = new StringBuilder(digest.length * 2);
+            for (final byte b : digest) {
+                buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                    Character.forDigit(b & 0xf, 16));
+            }
+            return buf.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
 }
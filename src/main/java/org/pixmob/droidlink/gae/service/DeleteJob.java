@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import java.util.List;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Unindexed;
+
+/**
+ * Delete job datastore entity. A delete job removes every event of some
+ * devices in background, batch after batch.
+ * @author Pixmob
+ */
+@Unindexed
+public class DeleteJob {
+    @Id
+    public Long id;
+    public String user;
+    /**
+     * Devices to delete events from.
+     */
+    public List<String> devices;
+    /**
+     * Index of the device whose events are being deleted.
+     */
+    public int position;
+    /**
+     * Datastore cursor of the next batch of events to delete.
+     */
+    public String cursor;
+    /**
+     * Number of steps run by this job.
+     */
+    public int step;
+    public long deleted;
+    public boolean done;
+    /**
+     * Creation date of this job: events written after this date are not
+     * deleted.
+     */
+    public long created;
+    
+    @Override
+    public String toString() {
+        return "DeleteJob[id=" + id + ", user=" + user + "]";
+    }
+}
@@ -34,7 +34,18 @@ public class Device {
     @Indexed
     public String user;
     public String name;
+    /**
+     * C2DM registration, indexed for pruning invalid registrations. Devices
+     * stored before this property was indexed must be written again: see
+     * {@link DeviceService#reindexDevices(String, int)}.
+     */
+    @Indexed
     public String c2dm;
+    /**
+     * Date when the C2DM registration was cleared because the push server
+     * rejected it, or 0.
+     */
+    public long c2dmPruned;
     
     @Override
     public String toString() {
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of device owners, local to this instance. Entries expire after
+ * a fixed delay: a device owner updated by another instance is seen by this
+ * instance once the entry has expired. When the cache is full, the least
+ * recently used entry is removed.
+ * @author Pixmob
+ */
+class DeviceOwnerCache {
+    private final int maxSize;
+    private final long ttl;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    /**
+     * Create a new instance.
+     * @param maxSize maximum number of entries
+     * @param ttl entry lifetime, in milliseconds
+     */
+    public DeviceOwnerCache(final int maxSize, final long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > DeviceOwnerCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * Get the owner of a device.
+     * @return <code>null</code> if the owner is not in the cache
+     */
+    public String get(String deviceId) {
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(deviceId);
+            if (entry != null && entry.expiration < System.currentTimeMillis()) {
+                entries.remove(deviceId);
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.owner;
+    }
+    
+    public void put(String deviceId, String owner) {
+        final Entry entry = new Entry(owner, System.currentTimeMillis() + ttl);
+        synchronized (entries) {
+            entries.put(deviceId, entry);
+        }
+    }
+    
+    public void invalidate(String deviceId) {
+        synchronized (entries) {
+            entries.remove(deviceId);
+        }
+    }
+    
+    /**
+     * Get cache statistics: hits, misses, evictions and size.
+     */
+    public Map<String, Long> getStats() {
+        final Map<String, Long> stats = new LinkedHashMap<String, Long>(8);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        synchronized (entries) {
+            stats.put("size", (long) entries.size());
+        }
+        stats.put("maxSize", (long) maxSize);
+        return stats;
+    }
+    
+    /**
+     * Cache entry.
+     * @author Pixmob
+     */
+    private static class Entry {
+        public final String owner;
+        public final long expiration;
+        
+        public Entry(final String owner, final long expiration) {
+            this.owner = owner;
+            this.expiration = expiration;
+        }
+    }
+}
@@ -15,32 +15,179 @@
  */
 package org.pixmob.droidlink.gae.service;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
 
+import org.pixmob.droidlink.gae.Constants;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
+import com.googlecode.objectify.Query;
 
 /**
  * Business service for managing devices.
  * @author Pixmob
  */
 public class DeviceService {
+    /**
+     * Kinds of the entities cached by Objectify.
+     */
+    public static final Set<String> CACHED_KINDS = Collections.unmodifiableSet(new HashSet<String>(
+            Arrays.asList(Device.class.getSimpleName(), Event.class.getSimpleName())));
+    
+    /**
+     * Memcache namespace used by the Objectify cache.
+     */
+    private static final String OBJECTIFY_CACHE_NAMESPACE = "ObjectifyCache";
+    
+    /**
+     * Maximum number of attempts for updating a registry entry, when the
+     * transaction fails because of a concurrent update.
+     */
+    private static final int REGISTRY_UPDATE_ATTEMPTS = 3;
+    
+    /**
+     * Maximum number of attempts for updating a device, when the transaction
+     * fails because of a concurrent update.
+     */
+    private static final int DEVICE_UPDATE_ATTEMPTS = 3;
+    
+    /**
+     * Separator between the watermark and the event position in a sync
+     * cursor.
+     */
+    private static final String SYNC_CURSOR_SEPARATOR = "-";
+    
+    private final Logger logger = Logger.getLogger(getClass().getName());
     private final ObjectifyFactory of;
+    private final DeviceOwnerCache ownerCache = new DeviceOwnerCache(
+            Constants.DEVICE_OWNER_CACHE_SIZE, Constants.DEVICE_OWNER_CACHE_TTL);
+    private final EventBuffer eventBuffer;
+    private final UserVersions versions;
+    private final MemcacheService objectifyCache;
     
     /**
      * Package protected constructor: use Guice to get an instance of this
      * class.
      */
     @Inject
-    DeviceService(final ObjectifyFactory of) {
+    DeviceService(final ObjectifyFactory of, @Named("events") final Queue eventQueue,
+            final MemcacheService memcacheService) {
         this.of = of;
+        this.eventBuffer = new EventBuffer(eventQueue, Constants.EVENT_BUFFER_LEASE_TIME);
+        this.versions = new UserVersions(memcacheService);
+        this.objectifyCache = MemcacheServiceFactory.getMemcacheService(OBJECTIFY_CACHE_NAMESPACE);
+    }
+    
+    /**
+     * Get the identifiers of the user devices.
+     */
+    public List<String> getUserDeviceIds(String user) {
+        checkNotNull(user, "User is required");
+        return getUserDeviceIds(of.begin(), user);
+    }
+    
+    /**
+     * Refresh a batch of cached entities for a device: the device and its
+     * events are removed from the Objectify cache, then read again in order to
+     * warm the cache. The device is refreshed with the first batch.
+     * @param cursor cursor returned by the previous batch, or <code>null</code>
+     *            to start with the first batch
+     * @return cursor for the next batch, or <code>null</code> if every entity
+     *         was refreshed
+     */
+    public String refreshDeviceCache(String deviceId, String cursor, int batchSize) {
+        checkNotNull(deviceId, "Device identifier is required");
+        checkArgument(batchSize > 0, "Batch size must be positive");
+        
+        final Objectify session = of.begin();
+        final Key<Device> deviceKey = new Key<Device>(Device.class, deviceId);
+        final Query<Event> query = session.query(Event.class).ancestor(deviceKey).limit(
+            batchSize);
+        if (cursor != null) {
+            query.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        
+        final List<Key<?>> keys = new ArrayList<Key<?>>(batchSize + 1);
+        if (cursor == null) {
+            keys.add(deviceKey);
+        }
+        int eventCount = 0;
+        final QueryResultIterator<Key<Event>> i = query.fetchKeys().iterator();
+        while (i.hasNext()) {
+            keys.add(i.next());
+            eventCount++;
+        }
+        refreshCache(session, keys);
+        
+        return eventCount < batchSize ? null : i.getCursor().toWebSafeString();
+    }
+    
+    /**
+     * Refresh a batch of cached entities of a kind: entities are removed from
+     * the Objectify cache, then read again in order to warm the cache.
+     * @param kind one of {@link #CACHED_KINDS}
+     * @param cursor cursor returned by the previous batch, or <code>null</code>
+     *            to start with the first batch
+     * @return cursor for the next batch, or <code>null</code> if every entity
+     *         was refreshed
+     */
+    public String refreshCache(String kind, String cursor, int batchSize) {
+        checkArgument(CACHED_KINDS.contains(kind), "Invalid entity kind: %s", kind);
+        checkArgument(batchSize > 0, "Batch size must be positive");
+        
+        final Objectify session = of.begin();
+        final Query<?> query = session.query(Device.class.getSimpleName().equals(kind)
+                ? Device.class : Event.class).limit(batchSize);
+        if (cursor != null) {
+            query.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        
+        final List<Key<?>> keys = new ArrayList<Key<?>>(batchSize);
+        final QueryResultIterator<? extends Key<?>> i = query.fetchKeys().iterator();
+        while (i.hasNext()) {
+            keys.add(i.next());
+        }
+        refreshCache(session, keys);
+        
+        return keys.size() < batchSize ? null : i.getCursor().toWebSafeString();
+    }
+    
+    /**
+     * Get the version of the user devices and events. This version changes
+     * whenever a device or an event of the user is written or deleted.
+     */
+    public long getVersion(String user) {
+        checkNotNull(user, "User is required");
+        return versions.get(user);
     }
     
     public Device getDevice(String user, String deviceId) throws DeviceNotFoundException,
@@ -51,6 +198,7 @@ public class DeviceService {
         if (device == null) {
             throw new DeviceNotFoundException(deviceId);
         }
+        ownerCache.put(deviceId, device.user);
         if (!user.equals(device.user)) {
             throw new AccessDeniedException();
         }
@@ -63,15 +211,9 @@ public class DeviceService {
         checkNotNull(deviceId, "Device identifier is required");
         
         final Objectify session = of.begin();
-        final Key<Device> deviceKey = new Key<Device>(Device.class, deviceId);
-        final Device device = session.find(deviceKey);
-        if (device == null) {
-            throw new DeviceNotFoundException(deviceId);
-        }
-        if (!user.equals(device.user)) {
-            throw new AccessDeniedException();
-        }
+        checkDeviceOwner(session, user, deviceId);
         
+        final Key<Device> deviceKey = new Key<Device>(Device.class, deviceId);
         final Event event = session.find(new Key<Event>(deviceKey, Event.class, eventId));
         if (event == null) {
             throw new EventNotFoundException(eventId);
@@ -80,79 +222,398 @@ public class DeviceService {
         return event;
     }
     
+    /**
+     * Get events sorted by date (most recent first). When
+     * <code>deviceId</code> is <code>null</code>, the events of every user
+     * device are returned: devices are queried concurrently, and results are
+     * merged while the returned iterable is read.
+     */
     public Iterable<Event> getEvents(String user, String deviceId) throws DeviceNotFoundException,
             AccessDeniedException {
         checkNotNull(user, "User is required");
         
         final Objectify session = of.begin();
-        if (deviceId != null) {
-            // Get events from this device.
-            final Device device = session.find(Device.class, deviceId);
-            if (device == null) {
-                throw new DeviceNotFoundException(deviceId);
+        final List<String> deviceIds = getEventSources(session, user, deviceId);
+        return new Iterable<Event>() {
+            @Override
+            public Iterator<Event> iterator() {
+                return new EventMerger(startEventQueries(session, deviceIds, null, 0), null);
             }
-            if (!user.equals(device.user)) {
-                throw new AccessDeniedException();
+        };
+    }
+    
+    /**
+     * Get a page of events, sorted by date (most recent first). When
+     * <code>deviceId</code> is <code>null</code>, the events of every user
+     * device are returned: devices are queried concurrently, and results are
+     * merged by date.
+     * @param cursor cursor returned with the previous page, or
+     *            <code>null</code> to get the first page
+     * @param limit maximum number of events in the page
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public Page<Event> getEvents(String user, String deviceId, String cursor, int limit)
+            throws DeviceNotFoundException, AccessDeniedException {
+        checkNotNull(user, "User is required");
+        checkArgument(limit > 0, "Limit must be positive");
+        
+        final Objectify session = of.begin();
+        final List<String> deviceIds = getEventSources(session, user, deviceId);
+        
+        // Devices which were unregistered since the previous page are
+        // ignored.
+        final EventCursor previousPosition = EventCursor.parse(cursor);
+        final EventCursor position = new EventCursor();
+        if (previousPosition != null) {
+            for (final String id : deviceIds) {
+                final Cursor deviceCursor = previousPosition.get(id);
+                if (deviceCursor != null) {
+                    position.put(id, deviceCursor);
+                }
             }
-            return session.query(Event.class).ancestor(device);
         }
         
-        // Get events from every user device.
-        final Set<Iterable<Event>> eventsByDevice = new HashSet<Iterable<Event>>(4);
-        final Iterable<Key<Device>> deviceKeys = session.query(Device.class).filter("user", user)
-                .fetchKeys();
-        for (final Key<Device> deviceKey : deviceKeys) {
-            eventsByDevice.add(session.query(Event.class).ancestor(deviceKey));
+        // A device may provide every event of this page: one more event is
+        // read from each device to know if there are events left.
+        final EventMerger merger = new EventMerger(startEventQueries(session, deviceIds,
+            position, limit + 1), position);
+        final List<Event> events = new ArrayList<Event>(limit);
+        while (events.size() < limit && merger.hasNext()) {
+            events.add(merger.next());
         }
         
-        return Iterables.concat(eventsByDevice);
+        return new Page<Event>(events, merger.hasNext() ? position.toString() : null);
     }
     
-    public Event deleteEvent(String user, String eventId) throws AccessDeniedException {
+    /**
+     * Get a page of events from every user device which were updated after a
+     * timestamp. This method is used for delta synchronization: only events
+     * changed since the last client sync are returned. Devices are read one
+     * after the other, sorted by identifier: every query is started before
+     * reading any result.
+     * <p>
+     * The returned watermark lags behind the current time, so that events
+     * being written while the events are read are returned again by the next
+     * synchronization: clients must merge events by identifier. Deleted events
+     * are not tracked: if events were deleted since the client
+     * synchronization, no event is returned, and the client must read every
+     * event again. Expired events are not reported as deleted: clients drop
+     * events older than the retention period themselves.
+     * @param since watermark returned by the previous synchronization, or 0
+     *            for the first synchronization
+     * @param cursor cursor returned with the previous page, or
+     *            <code>null</code> to get the first page
+     * @param limit maximum number of events in the page
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public EventSync getEventsSince(String user, long since, String cursor, int limit) {
         checkNotNull(user, "User is required");
+        checkArgument(limit > 0, "Limit must be positive");
         
         final Objectify session = of.begin();
-        for (final Key<Device> deviceKey : session.query(Device.class).fetchKeys()) {
-            // Find the device which is linked to this event.
-            final Event event = session.find(new Key<Event>(deviceKey, Event.class, eventId));
-            if (event != null) {
-                final Device device = session.find(event.device);
-                if (device != null && !user.equals(device.user)) {
-                    throw new AccessDeniedException();
+        final RegisteredUser registeredUser = getRegistryEntry(session, user);
+        
+        // The watermark is set by the first page, and kept in the cursor of
+        // the next pages.
+        final long watermark;
+        String startDeviceId = null;
+        Cursor startCursor = null;
+        if (cursor == null) {
+            watermark = Math.max(since, System.currentTimeMillis()
+                    - Constants.SYNC_WATERMARK_LAG);
+            if (since > 0 && (registeredUser == null || registeredUser.eventsDeleted > since)) {
+                return new EventSync(Collections.<Event> emptyList(), null, watermark, true);
+            }
+        } else {
+            final int i = cursor.indexOf(SYNC_CURSOR_SEPARATOR);
+            final EventCursor position = i == -1 ? null : EventCursor.parse(cursor
+                    .substring(i + 1));
+            if (position == null || position.getCursors().size() != 1) {
+                throw new IllegalArgumentException("Invalid sync cursor: " + cursor);
+            }
+            try {
+                watermark = Long.parseLong(cursor.substring(0, i));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sync cursor: " + cursor);
+            }
+            startDeviceId = position.getCursors().keySet().iterator().next();
+            startCursor = position.get(startDeviceId);
+        }
+        
+        // Devices before the device of the cursor were read by the previous
+        // pages. A device may provide every event of this page: one more
+        // event is read from each device to know if there are events left.
+        final List<String> deviceIds = getUserDeviceIds(session, registeredUser);
+        Collections.sort(deviceIds);
+        final Map<String, QueryResultIterator<Event>> queries = new LinkedHashMap<String, QueryResultIterator<Event>>(
+                deviceIds.size());
+        for (final String deviceId : deviceIds) {
+            if (startDeviceId != null && deviceId.compareTo(startDeviceId) < 0) {
+                continue;
+            }
+            final Query<Event> query = session.query(Event.class)
+                    .ancestor(new Key<Device>(Device.class, deviceId)).filter("update >", since)
+                    .limit(limit + 1);
+            if (deviceId.equals(startDeviceId)) {
+                query.startCursor(startCursor);
+            }
+            queries.put(deviceId, query.iterator());
+        }
+        
+        final List<Event> events = new ArrayList<Event>(Math.min(limit, 64));
+        String nextCursor = null;
+        final Iterator<Map.Entry<String, QueryResultIterator<Event>>> i = queries.entrySet()
+                .iterator();
+        while (i.hasNext()) {
+            final Map.Entry<String, QueryResultIterator<Event>> e = i.next();
+            final QueryResultIterator<Event> deviceEvents = e.getValue();
+            while (events.size() < limit && deviceEvents.hasNext()) {
+                events.add(deviceEvents.next());
+            }
+            if (events.size() == limit) {
+                if (deviceEvents.hasNext() || i.hasNext()) {
+                    final EventCursor position = new EventCursor();
+                    position.put(e.getKey(), deviceEvents.getCursor());
+                    nextCursor = watermark + SYNC_CURSOR_SEPARATOR + position;
                 }
-                session.delete(event);
-                
-                return event;
+                break;
             }
         }
         
-        return null;
+        return new EventSync(events, nextCursor, watermark, false);
+    }
+    
+    /**
+     * Get the identifiers of the devices to read events from: every user
+     * device is returned when <code>deviceId</code> is <code>null</code>.
+     */
+    private List<String> getEventSources(Objectify session, String user, String deviceId)
+            throws DeviceNotFoundException, AccessDeniedException {
+        if (deviceId != null) {
+            checkDeviceOwner(session, user, deviceId);
+            return Collections.singletonList(deviceId);
+        }
+        return getUserDeviceIds(session, user);
     }
     
-    public void deleteEvents(String user) {
+    /**
+     * Start a query for the events of each device, sorted by date (most recent
+     * first). Creating a query iterator sends the first datastore RPC
+     * asynchronously: every query runs concurrently, and the caller only waits
+     * for the slowest device when results are read.
+     * @param position cursor for each device, or <code>null</code> to read
+     *            events from the beginning
+     * @param limit maximum number of events for each device, or 0 for no limit
+     */
+    private Map<String, QueryResultIterator<Event>> startEventQueries(Objectify session,
+            List<String> deviceIds, EventCursor position, int limit) {
+        final Map<String, QueryResultIterator<Event>> queries = new LinkedHashMap<String, QueryResultIterator<Event>>(
+                deviceIds.size());
+        for (final String deviceId : deviceIds) {
+            final Query<Event> query = session.query(Event.class)
+                    .ancestor(new Key<Device>(Device.class, deviceId)).order("-date");
+            if (limit > 0) {
+                query.limit(limit);
+            }
+            if (position != null && position.get(deviceId) != null) {
+                query.startCursor(position.get(deviceId));
+            }
+            queries.put(deviceId, query.iterator());
+        }
+        return queries;
+    }
+    
+    /**
+     * Delete an event. The event is only searched among the user devices: if
+     * the device identifier is known, the event is deleted without searching
+     * it.
+     * @param deviceId device identifier, or <code>null</code> if unknown
+     * @return the deleted event, or <code>null</code> if no such event was
+     *         found
+     */
+    public Event deleteEvent(String user, String deviceId, String eventId)
+            throws DeviceNotFoundException, AccessDeniedException {
         checkNotNull(user, "User is required");
+        checkNotNull(eventId, "Event identifier is required");
         
         final Objectify session = of.begin();
-        for (final Key<Device> deviceKey : session.query(Device.class).filter("user", user)
-                .fetchKeys()) {
-            final Iterable<Key<Event>> eventKeys = session.query(Event.class).ancestor(deviceKey)
-                    .fetchKeys();
+        final Event event;
+        if (deviceId != null) {
+            checkDeviceOwner(session, user, deviceId);
+            event = session.find(new Key<Event>(new Key<Device>(Device.class, deviceId),
+                    Event.class, eventId));
+        } else {
+            // Look for this event in every user device with a single batch
+            // get.
+            final List<Key<Event>> eventKeys = new ArrayList<Key<Event>>(4);
+            for (final String userDeviceId : getUserDeviceIds(session, user)) {
+                eventKeys.add(new Key<Event>(new Key<Device>(Device.class, userDeviceId),
+                        Event.class, eventId));
+            }
+            final Iterator<Event> events = session.get(eventKeys).values().iterator();
+            event = events.hasNext() ? events.next() : null;
+        }
+        
+        if (event != null) {
+            session.delete(event);
+            markEventsDeleted(user);
+            versions.increment(user);
+        }
+        
+        return event;
+    }
+    
+    /**
+     * Delete every event of a user. Events are deleted in background by a
+     * delete job: see {@link #runDeleteJob(long, int, int, Queue, TaskOptions)}.
+     * @return the delete job
+     */
+    public DeleteJob deleteEvents(String user) {
+        checkNotNull(user, "User is required");
+        
+        final Objectify session = of.begin();
+        final DeleteJob job = createDeleteJob(session, user, getUserDeviceIds(session, user));
+        markEventsDeleted(user);
+        return job;
+    }
+    
+    /**
+     * Get a delete job.
+     */
+    public DeleteJob getDeleteJob(String user, long jobId) throws JobNotFoundException,
+            AccessDeniedException {
+        checkNotNull(user, "User is required");
+        
+        final DeleteJob job = of.begin().find(DeleteJob.class, jobId);
+        if (job == null) {
+            throw new JobNotFoundException(jobId);
+        }
+        if (!user.equals(job.user)) {
+            throw new AccessDeniedException();
+        }
+        return job;
+    }
+    
+    /**
+     * Run a delete job step: a batch of events is deleted, using a keys-only
+     * query. Only events written before the job was created are deleted: a
+     * device registered again with the same identifier keeps its new events.
+     * The job is updated with the position of the next batch in a
+     * transaction, and the task running the next step is added in this
+     * transaction: a job is advanced once for each step, even if a task is
+     * run twice.
+     * @param step step to run: nothing is done if the job is past this step
+     * @param batchSize maximum number of events to delete
+     * @param queue queue where the task for the next step is added
+     * @param nextTask task running the next step, added if the job is not
+     *            done after this step
+     * @return the updated job
+     */
+    public DeleteJob runDeleteJob(long jobId, int step, int batchSize, Queue queue,
+            TaskOptions nextTask) throws JobNotFoundException {
+        checkArgument(batchSize > 0, "Batch size must be positive");
+        
+        final Objectify session = of.begin();
+        final DeleteJob job = session.find(DeleteJob.class, jobId);
+        if (job == null) {
+            throw new JobNotFoundException(jobId);
+        }
+        if (job.done || job.step != step) {
+            return job;
+        }
+        
+        final String deviceId = job.devices.get(job.position);
+        final Query<Event> query = session.query(Event.class)
+                .ancestor(new Key<Device>(Device.class, deviceId))
+                .filter("update <=", job.created).limit(batchSize);
+        if (job.cursor != null) {
+            query.startCursor(Cursor.fromWebSafeString(job.cursor));
+        }
+        
+        final List<Key<Event>> eventKeys = new ArrayList<Key<Event>>(batchSize);
+        final QueryResultIterator<Key<Event>> i = query.fetchKeys().iterator();
+        while (i.hasNext()) {
+            eventKeys.add(i.next());
+        }
+        if (!eventKeys.isEmpty()) {
             session.delete(eventKeys);
+            markEventsDeleted(job.user);
+            versions.increment(job.user);
+        }
+        final String nextCursor = eventKeys.size() < batchSize ? null : i.getCursor()
+                .toWebSafeString();
+        
+        // Deleting events is idempotent: if this step was run meanwhile, the
+        // job is left unchanged.
+        final Objectify txn = of.beginTransaction();
+        try {
+            final DeleteJob currentJob = txn.find(DeleteJob.class, jobId);
+            if (currentJob == null || currentJob.step != step) {
+                return currentJob == null ? job : currentJob;
+            }
+            
+            currentJob.step++;
+            currentJob.deleted += eventKeys.size();
+            if (nextCursor == null) {
+                // Every event from this device was deleted.
+                currentJob.position++;
+                currentJob.cursor = null;
+                currentJob.done = currentJob.position == currentJob.devices.size();
+            } else {
+                currentJob.cursor = nextCursor;
+            }
+            txn.put(currentJob);
+            if (!currentJob.done) {
+                queue.add(txn.getTxn(), nextTask);
+            }
+            txn.getTxn().commit();
+            
+            return currentJob;
+        } finally {
+            if (txn.getTxn().isActive()) {
+                txn.getTxn().rollback();
+            }
         }
     }
     
     public Iterable<Device> getDevices(String user) {
         checkNotNull(user, "User is required");
-        return of.begin().query(Device.class).filter("user", user);
+        return getUserDevices(of.begin(), user);
     }
     
     public Iterable<String> getRegisteredUsers() {
-        final Set<String> users = new HashSet<String>(128);
-        for (final Device device : of.begin().query(Device.class)) {
-            users.add(device.user);
+        return Iterables.transform(of.begin().query(RegisteredUser.class).fetchKeys(),
+            new Function<Key<RegisteredUser>, String>() {
+                @Override
+                public String apply(Key<RegisteredUser> userKey) {
+                    return userKey.getName();
+                }
+            });
+    }
+    
+    /**
+     * Get a page of registered users, using a keys-only query.
+     * @param cursor cursor returned with the previous page, or
+     *            <code>null</code> to get the first page
+     * @param limit maximum number of users in the page
+     * @throws IllegalArgumentException if the cursor is invalid
+     */
+    public Page<String> getRegisteredUsers(String cursor, int limit) {
+        checkArgument(limit > 0, "Limit must be positive");
+        
+        final Query<RegisteredUser> query = of.begin().query(RegisteredUser.class).limit(limit);
+        if (cursor != null) {
+            query.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        
+        final List<String> users = new ArrayList<String>(limit);
+        final QueryResultIterator<Key<RegisteredUser>> i = query.fetchKeys().iterator();
+        while (i.hasNext()) {
+            users.add(i.next().getName());
         }
         
-        return Collections.unmodifiableCollection(users);
+        return new Page<String>(users, users.size() < limit ? null : i.getCursor()
+                .toWebSafeString());
     }
     
     public Device registerDevice(String user, String deviceId, String deviceName, String c2dm)
@@ -179,6 +640,7 @@ public class DeviceService {
             }
             if (c2dm != null) {
                 device.c2dm = c2dm;
+                device.c2dmPruned = 0;
             }
             
             session.put(device);
@@ -189,10 +651,26 @@ public class DeviceService {
             }
         }
         
+        ownerCache.put(deviceId, user);
+        
+        // The device is added to the registry even if the device is already
+        // known, so that users registered before the registry existed are
+        // added.
+        updateRegistry(user, Collections.singleton(deviceId), Collections.<String> emptyList(),
+            false);
+        versions.increment(user);
+        
         return device;
     }
     
-    public Set<String> unregisterDevice(String user, String deviceId) throws AccessDeniedException {
+    /**
+     * Unregister a device, or every user device if <code>deviceId</code> is
+     * <code>null</code>. Devices are deleted right away, whereas their events
+     * are deleted in background by a delete job: see
+     * {@link #runDeleteJob(long, int, int, Queue, TaskOptions)}.
+     * @return the delete job
+     */
+    public DeleteJob unregisterDevice(String user, String deviceId) throws AccessDeniedException {
         checkNotNull(user, "User is required");
         
         final Objectify session = of.begin();
@@ -203,27 +681,44 @@ public class DeviceService {
                 if (!user.equals(device.user)) {
                     throw new AccessDeniedException();
                 }
-                final Iterable<Key<Event>> events = session.query(Event.class).ancestor(device)
-                        .fetchKeys();
-                session.delete(events);
                 session.delete(Device.class, deviceId);
-                return Collections.singleton(deviceId);
+                ownerCache.invalidate(deviceId);
+                
+                // The user is removed from the registry with its last device.
+                // The registry is updated in a transaction: unlike a query on
+                // the device owner, this never misses a device registered
+                // meanwhile.
+                updateRegistry(user, Collections.<String> emptyList(),
+                    Collections.singleton(deviceId), true);
+                versions.increment(user);
+                
+                return createDeleteJob(session, user, Collections.singletonList(deviceId));
             }
         }
         
-        // Unregister every user device.
-        final Iterable<Key<Device>> devices = session.query(Device.class).filter("user", user)
-                .fetchKeys();
-        final Set<String> deviceIds = new HashSet<String>(4);
-        for (final Key<Device> device : devices) {
-            final Iterable<Key<Event>> events = session.query(Event.class).ancestor(device)
-                    .fetchKeys();
-            session.delete(events);
-            session.delete(device);
-            deviceIds.add(deviceId);
+        // Unregister every user device. Registry entries for devices which no
+        // longer exist are removed too.
+        final RegisteredUser registeredUser = getRegistryEntry(session, user);
+        if (registeredUser == null) {
+            return createDeleteJob(session, user, Collections.<String> emptyList());
+        }
+        final List<String> deviceIds = new ArrayList<String>(registeredUser.devices.size());
+        final List<Key<Device>> deviceKeys = new ArrayList<Key<Device>>(
+                registeredUser.devices.size());
+        for (final Device device : session.get(Device.class, registeredUser.devices).values()) {
+            if (user.equals(device.user)) {
+                ownerCache.invalidate(device.id);
+                deviceIds.add(device.id);
+                deviceKeys.add(new Key<Device>(Device.class, device.id));
+            }
         }
+        if (!deviceKeys.isEmpty()) {
+            session.delete(deviceKeys);
+        }
+        updateRegistry(user, Collections.<String> emptyList(), registeredUser.devices, true);
+        versions.increment(user);
         
-        return deviceIds;
+        return createDeleteJob(session, user, deviceIds);
     }
     
     public void addEvent(String user, String deviceId, String eventId, long eventDate,
@@ -235,13 +730,7 @@ public class DeviceService {
         checkNotNull(eventType, "Event type is required");
         
         final Objectify session = of.begin();
-        final Device device = session.find(Device.class, deviceId);
-        if (device == null) {
-            throw new DeviceNotFoundException(deviceId);
-        }
-        if (!user.equals(device.user)) {
-            throw new AccessDeniedException();
-        }
+        checkDeviceOwner(session, user, deviceId);
         
         final Event event = new Event();
         event.id = eventId;
@@ -251,28 +740,504 @@ public class DeviceService {
         event.number = eventNumber;
         event.name = eventName;
         event.message = eventMessage;
-        event.update = System.currentTimeMillis();
-        session.put(event);
+        
+        if (Constants.ENABLE_EVENT_WRITE_BEHIND) {
+            // The event is written later with other buffered events: see
+            // flushEvents().
+            eventBuffer.add(event);
+        } else {
+            event.update = System.currentTimeMillis();
+            session.put(event);
+            versions.increment(user);
+        }
     }
     
-    public void cleanEvents(String deviceId, long maxAge) {
-        if (deviceId != null) {
+    /**
+     * Add several events at once. Devices are read with a single batch get,
+     * and every allowed event is written with a single batch put, or buffered
+     * if write-behind is enabled. The device key of each event must be set.
+     * @return errors for the events, in the same order: either
+     *         <code>null</code> if the event was added,
+     *         {@link DeviceNotFoundException} or {@link AccessDeniedException}
+     */
+    public List<Exception> addEvents(String user, List<Event> events) {
+        checkNotNull(user, "User is required");
+        checkNotNull(events, "Events are required");
+        
+        // Device owners which are not cached are read with a single batch get.
+        final Map<String, String> owners = new HashMap<String, String>(4);
+        final Set<String> deviceIdsToRead = new HashSet<String>(4);
+        for (final Event event : events) {
+            checkNotNull(event.id, "Event identifier is required");
+            checkNotNull(event.device, "Device is required");
+            checkNotNull(event.type, "Event type is required");
+            
+            final String deviceId = event.device.getName();
+            if (!owners.containsKey(deviceId) && !deviceIdsToRead.contains(deviceId)) {
+                final String owner = ownerCache.get(deviceId);
+                if (owner != null) {
+                    owners.put(deviceId, owner);
+                } else {
+                    deviceIdsToRead.add(deviceId);
+                }
+            }
+        }
+        
+        final Objectify session = of.begin();
+        if (!deviceIdsToRead.isEmpty()) {
+            for (final Device device : session.get(Device.class, deviceIdsToRead).values()) {
+                owners.put(device.id, device.user);
+                ownerCache.put(device.id, device.user);
+            }
+        }
+        
+        final List<Exception> errors = new ArrayList<Exception>(events.size());
+        final List<Event> eventsToAdd = new ArrayList<Event>(events.size());
+        final long now = System.currentTimeMillis();
+        for (final Event event : events) {
+            final String deviceId = event.device.getName();
+            final String owner = owners.get(deviceId);
+            if (owner == null) {
+                errors.add(new DeviceNotFoundException(deviceId));
+            } else if (!user.equals(owner)) {
+                errors.add(new AccessDeniedException());
+            } else {
+                errors.add(null);
+                event.update = now;
+                eventsToAdd.add(event);
+            }
+        }
+        if (!eventsToAdd.isEmpty()) {
+            if (Constants.ENABLE_EVENT_WRITE_BEHIND) {
+                // Events are written later with other buffered events: see
+                // flushEvents().
+                eventBuffer.add(eventsToAdd);
+            } else {
+                session.put(eventsToAdd);
+                versions.increment(user);
+            }
+        }
+        
+        return errors;
+    }
+    
+    /**
+     * Write a batch of buffered events to the datastore. Events are leased
+     * from the buffer, and written with a single batch put, sorted by device:
+     * every event of a device is in the same entity group. Events of devices
+     * which no longer exist are dropped. Buffered events are removed once
+     * written. If this method fails, events are available again when the
+     * lease expires.
+     * @param batchSize maximum number of buffered events to write
+     * @return number of buffered events which were read: if this value is
+     *         <code>batchSize</code>, there may be more buffered events
+     */
+    public int flushEvents(int batchSize) {
+        checkArgument(batchSize > 0, "Batch size must be positive");
+        
+        final List<TaskHandle> tasks = eventBuffer.lease(batchSize);
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+        
+        // If an event was buffered several times, the last buffered version is
+        // kept: leased tasks are not sorted.
+        final Map<Key<Event>, Event> events = new TreeMap<Key<Event>, Event>();
+        final Map<Key<Event>, Long> bufferedTimes = new HashMap<Key<Event>, Long>(
+                tasks.size());
+        final Set<String> deviceIds = new HashSet<String>(4);
+        for (final TaskHandle task : tasks) {
+            final Event event = EventBuffer.toEvent(task);
+            if (event != null) {
+                final Key<Event> eventKey = new Key<Event>(event.device, Event.class, event.id);
+                final long bufferedTime = EventBuffer.getBufferedTime(task);
+                final Long lastBufferedTime = bufferedTimes.get(eventKey);
+                if (lastBufferedTime == null || bufferedTime >= lastBufferedTime) {
+                    events.put(eventKey, event);
+                    bufferedTimes.put(eventKey, bufferedTime);
+                }
+                deviceIds.add(event.device.getName());
+            }
+        }
+        if (!events.isEmpty()) {
+            // Devices are read without the owner cache: an event must not be
+            // written for a device which was unregistered by another instance.
+            final Objectify session = of.begin();
+            final Map<String, Device> devices = session.get(Device.class, deviceIds);
+            final Set<String> owners = new HashSet<String>(4);
+            final List<Event> eventsToAdd = new ArrayList<Event>(events.size());
+            final long now = System.currentTimeMillis();
+            for (final Event event : events.values()) {
+                final Device device = devices.get(event.device.getName());
+                if (device != null) {
+                    event.update = now;
+                    eventsToAdd.add(event);
+                    owners.add(device.user);
+                }
+            }
+            if (events.size() != eventsToAdd.size()) {
+                logger.info("Drop " + (events.size() - eventsToAdd.size())
+                        + " buffered event(s) of unknown devices");
+            }
+            if (!eventsToAdd.isEmpty()) {
+                session.put(eventsToAdd);
+                versions.increment(owners);
+            }
+        }
+        eventBuffer.remove(tasks);
+        
+        return tasks.size();
+    }
+    
+    /**
+     * Clear C2DM registrations rejected by the push server. Devices without a
+     * C2DM registration are not synchronized anymore, until the device is
+     * registered again. Each device is updated in a transaction: a
+     * registration is not cleared if the device was registered again with a
+     * new registration meanwhile.
+     * @param user owner of the devices, or <code>null</code> to search the
+     *            registrations with a query
+     * @return number of cleared registrations
+     */
+    public int pruneRegistrations(String user, Collection<String> registrationIds) {
+        checkNotNull(registrationIds, "Registration identifiers are required");
+        if (registrationIds.isEmpty()) {
+            return 0;
+        }
+        
+        // Rejected registrations, by device.
+        final Objectify session = of.begin();
+        final Map<String, String> deviceRegistrations = new HashMap<String, String>(
+                registrationIds.size());
+        if (user != null) {
+            final Set<String> ids = new HashSet<String>(registrationIds);
+            for (final Device device : getUserDevices(session, user)) {
+                if (device.c2dm != null && ids.contains(device.c2dm)) {
+                    deviceRegistrations.put(device.id, device.c2dm);
+                }
+            }
+        } else {
+            for (final String registrationId : registrationIds) {
+                for (final Key<Device> deviceKey : session.query(Device.class)
+                        .filter("c2dm", registrationId).fetchKeys()) {
+                    deviceRegistrations.put(deviceKey.getName(), registrationId);
+                }
+            }
+        }
+        
+        int count = 0;
+        for (final Map.Entry<String, String> e : deviceRegistrations.entrySet()) {
+            if (pruneRegistration(e.getKey(), e.getValue())) {
+                count++;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Clear the C2DM registration of a device, in a transaction, if the device
+     * registration is still the rejected one.
+     * @return <code>true</code> if the registration was cleared
+     */
+    private boolean pruneRegistration(String deviceId, String registrationId) {
+        for (int attempt = 1;; ++attempt) {
             final Objectify session = of.beginTransaction();
             try {
+                final Device device = session.find(Device.class, deviceId);
+                if (device == null || !registrationId.equals(device.c2dm)) {
+                    return false;
+                }
+                device.c2dm = null;
+                device.c2dmPruned = System.currentTimeMillis();
+                session.put(device);
+                session.getTxn().commit();
+                return true;
+            } catch (ConcurrentModificationException e) {
+                if (attempt >= DEVICE_UPDATE_ATTEMPTS) {
+                    // The device was updated meanwhile: the registration is
+                    // cleared when it is rejected again.
+                    logger.warning("Failed to clear C2DM registration of device " + deviceId);
+                    return false;
+                }
+            } finally {
+                if (session.getTxn().isActive()) {
+                    session.getTxn().rollback();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Get statistics for the cache of device owners.
+     */
+    public Map<String, Long> getDeviceOwnerCacheStats() {
+        return ownerCache.getStats();
+    }
+    
+    /**
+     * Delete expired events from a device. Expired events are selected with a
+     * keys-only query, and at most <code>limit</code> events are deleted.
+     * Clients are not asked to read every event again, as they are when
+     * events are deleted by the user.
+     * @param maxAge maximum event age, in milliseconds
+     * @param limit maximum number of events to delete
+     * @return number of deleted events: if this value is <code>limit</code>,
+     *         there may be more expired events
+     */
+    public int cleanEvents(String deviceId, long maxAge, int limit) {
+        checkNotNull(deviceId, "Device identifier is required");
+        checkArgument(limit > 0, "Limit must be positive");
+        
+        // The events are sorted by date in order to use the same index as
+        // event listing.
+        final Objectify session = of.begin();
+        final long oldestDate = System.currentTimeMillis() - maxAge;
+        final List<Key<Event>> eventKeys = Lists.newArrayList(session.query(Event.class)
+                .ancestor(new Key<Device>(Device.class, deviceId)).filter("date <", oldestDate)
+                .order("-date").limit(limit).fetchKeys());
+        if (!eventKeys.isEmpty()) {
+            session.delete(eventKeys);
+            versions.increment(getDeviceOwners(session, Collections.singleton(deviceId))
+                    .values());
+        }
+        
+        return eventKeys.size();
+    }
+    
+    /**
+     * Get a page of device identifiers, for every user. This method uses a
+     * keys-only query.
+     * @param cursor cursor returned with the previous page, or
+     *            <code>null</code> to get the first page
+     * @param limit maximum number of devices in the page
+     */
+    public Page<String> getDeviceIds(String cursor, int limit) {
+        checkArgument(limit > 0, "Limit must be positive");
+        
+        final Query<Device> query = of.begin().query(Device.class).limit(limit);
+        if (cursor != null) {
+            query.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        
+        final List<String> deviceIds = new ArrayList<String>(limit);
+        final QueryResultIterator<Key<Device>> i = query.fetchKeys().iterator();
+        while (i.hasNext()) {
+            deviceIds.add(i.next().getName());
+        }
+        
+        return new Page<String>(deviceIds, deviceIds.size() < limit ? null : i.getCursor()
+                .toWebSafeString());
+    }
+    
+    /**
+     * Write again a batch of events to the datastore, in order to update
+     * indexes. Events stored before a property was indexed are not returned by
+     * queries filtering or sorting on this property.
+     * @param cursor cursor returned by the previous batch, or <code>null</code>
+     *            to start with the first batch
+     * @return cursor for the next batch, or <code>null</code> if every event
+     *         was written
+     */
+    public String reindexEvents(String cursor, int batchSize) {
+        checkArgument(batchSize > 0, "Batch size must be positive");
+        
+        final Objectify session = of.begin();
+        final Query<Event> query = session.query(Event.class).limit(batchSize);
+        if (cursor != null) {
+            query.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        
+        final List<Event> events = new ArrayList<Event>(batchSize);
+        final QueryResultIterator<Event> i = query.iterator();
+        while (i.hasNext()) {
+            events.add(i.next());
+        }
+        session.put(events);
+        
+        return events.size() < batchSize ? null : i.getCursor().toWebSafeString();
+    }
+    
+    /**
+     * Write again a batch of devices to the datastore, in order to update
+     * indexes: devices stored before the C2DM registration was indexed are
+     * not found when an invalid registration is pruned. Each device is read
+     * again and written in a transaction, so that a concurrent registration
+     * is not overwritten.
+     * @param cursor cursor returned by the previous batch, or <code>null</code>
+     *            to start with the first batch
+     * @return cursor for the next batch, or <code>null</code> if every device
+     *         was written
+     */
+    public String reindexDevices(String cursor, int batchSize) {
+        checkArgument(batchSize > 0, "Batch size must be positive");
+        
+        final Objectify session = of.begin();
+        final Query<Device> query = session.query(Device.class).limit(batchSize);
+        if (cursor != null) {
+            query.startCursor(Cursor.fromWebSafeString(cursor));
+        }
+        
+        final QueryResultIterator<Key<Device>> i = query.fetchKeys().iterator();
+        int count = 0;
+        while (i.hasNext()) {
+            reindexDevice(i.next());
+            count++;
+        }
+        
+        return count < batchSize ? null : i.getCursor().toWebSafeString();
+    }
+    
+    private void reindexDevice(Key<Device> deviceKey) {
+        final Objectify session = of.beginTransaction();
+        try {
+            final Device device = session.find(deviceKey);
+            if (device != null) {
+                session.put(device);
+            }
+            session.getTxn().commit();
+        } catch (ConcurrentModificationException e) {
+            // The device was written meanwhile: its indexes are up to date.
+        } finally {
+            if (session.getTxn().isActive()) {
+                session.getTxn().rollback();
+            }
+        }
+    }
+    
+    /**
+     * Get the user devices: the devices listed by the registry are read with
+     * a single batch get. Unlike a query on the device owner, this is
+     * strongly consistent: a device is returned as soon as it is registered,
+     * and never after it is unregistered.
+     */
+    private List<Device> getUserDevices(Objectify session, String user) {
+        return getUserDevices(session, getRegistryEntry(session, user));
+    }
+    
+    /**
+     * Get the devices listed by a registry entry.
+     * @param registeredUser registry entry, or <code>null</code>
+     */
+    private List<Device> getUserDevices(Objectify session, RegisteredUser registeredUser) {
+        if (registeredUser == null) {
+            return Collections.emptyList();
+        }
+        
+        final List<Device> devices = new ArrayList<Device>(registeredUser.devices.size());
+        for (final Device device : session.get(Device.class, registeredUser.devices).values()) {
+            if (registeredUser.user.equals(device.user)) {
+                devices.add(device);
+            }
+        }
+        return devices;
+    }
+    
+    /**
+     * Get the identifiers of the user devices.
+     * @see #getUserDevices(Objectify, String)
+     */
+    private List<String> getUserDeviceIds(Objectify session, String user) {
+        return getUserDeviceIds(session, getRegistryEntry(session, user));
+    }
+    
+    /**
+     * Get the identifiers of the devices listed by a registry entry.
+     * @param registeredUser registry entry, or <code>null</code>
+     */
+    private List<String> getUserDeviceIds(Objectify session, RegisteredUser registeredUser) {
+        final List<Device> devices = getUserDevices(session, registeredUser);
+        final List<String> deviceIds = new ArrayList<String>(devices.size());
+        for (final Device device : devices) {
+            deviceIds.add(device.id);
+        }
+        return deviceIds;
+    }
+    
+    /**
+     * Get the registry entry of a user, or <code>null</code> if the user has
+     * no registered device. Users registered before the registry listed their
+     * devices are added to the registry with a query, the first time their
+     * entry is read.
+     */
+    private RegisteredUser getRegistryEntry(Objectify session, String user) {
+        final RegisteredUser registeredUser = session.find(RegisteredUser.class, user);
+        if (registeredUser != null && registeredUser.devices != null) {
+            return registeredUser;
+        }
+        
+        final List<String> deviceIds = new ArrayList<String>(4);
+        for (final Key<Device> deviceKey : session.query(Device.class).filter("user", user)
+                .fetchKeys()) {
+            deviceIds.add(deviceKey.getName());
+        }
+        if (deviceIds.isEmpty()) {
+            return null;
+        }
+        return updateRegistry(user, deviceIds, Collections.<String> emptyList(), false);
+    }
+    
+    /**
+     * Record that events of a user were deleted: clients which synchronized
+     * before this deletion must read every event again.
+     */
+    private void markEventsDeleted(String user) {
+        updateRegistry(user, Collections.<String> emptyList(), Collections.<String> emptyList(),
+            true);
+    }
+    
+    /**
+     * Add and remove devices from the registry entry of a user, in a
+     * transaction: the registry is the strongly consistent list of the user
+     * devices. The entry is created with the first device, and deleted with
+     * the last one.
+     * @param eventsDeleted <code>true</code> if events of the user were
+     *            deleted
+     * @return the updated entry, or <code>null</code> if the entry was deleted
+     */
+    private RegisteredUser updateRegistry(String user, Collection<String> addedDeviceIds,
+            Collection<String> removedDeviceIds, boolean eventsDeleted) {
+        for (int attempt = 1;; ++attempt) {
+            final Objectify session = of.beginTransaction();
+            try {
+                RegisteredUser registeredUser = session.find(RegisteredUser.class, user);
+                if (registeredUser == null) {
+                    if (addedDeviceIds.isEmpty()) {
+                        return null;
+                    }
+                    registeredUser = new RegisteredUser(user);
+                }
                 final long now = System.currentTimeMillis();
-                final long limit = now - maxAge;
-                final Set<Event> eventsToDelete = new HashSet<Event>(16);
-                
-                final Iterable<Event> events = session.query(Event.class).ancestor(
-                    new Key<Device>(Device.class, deviceId));
-                for (final Event event : events) {
-                    if (event.date < limit) {
-                        eventsToDelete.add(event);
+                if (registeredUser.devices == null && !addedDeviceIds.isEmpty()) {
+                    // Events deleted before the devices were listed are
+                    // unknown.
+                    registeredUser.devices = new ArrayList<String>(addedDeviceIds.size());
+                    registeredUser.eventsDeleted = now;
+                }
+                if (eventsDeleted) {
+                    registeredUser.eventsDeleted = now;
+                }
+                if (registeredUser.devices != null) {
+                    for (final String deviceId : addedDeviceIds) {
+                        if (!registeredUser.devices.contains(deviceId)) {
+                            registeredUser.devices.add(deviceId);
+                        }
                     }
+                    registeredUser.devices.removeAll(removedDeviceIds);
                 }
                 
-                session.delete(eventsToDelete);
+                if (registeredUser.devices != null && registeredUser.devices.isEmpty()) {
+                    session.delete(registeredUser);
+                    registeredUser = null;
+                } else {
+                    session.put(registeredUser);
+                }
                 session.getTxn().commit();
+                
+                return registeredUser;
+            } catch (ConcurrentModificationException e) {
+                if (attempt >= REGISTRY_UPDATE_ATTEMPTS) {
+                    throw e;
+                }
             } finally {
                 if (session.getTxn().isActive()) {
                     session.getTxn().rollback();
@@ -280,4 +1245,87 @@ public class DeviceService {
             }
         }
     }
+    
+    private DeleteJob createDeleteJob(Objectify session, String user, List<String> deviceIds) {
+        final DeleteJob job = new DeleteJob();
+        job.user = user;
+        job.devices = new ArrayList<String>(deviceIds);
+        job.done = deviceIds.isEmpty();
+        job.created = System.currentTimeMillis();
+        session.put(job);
+        return job;
+    }
+    
+    /**
+     * Remove entities from the Objectify cache, and read them again with a
+     * single batch get: Objectify puts them back in the cache. The owners of
+     * the refreshed entities get a new version, since their cached responses
+     * may be stale too.
+     */
+    private void refreshCache(Objectify session, List<Key<?>> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        
+        final List<com.google.appengine.api.datastore.Key> rawKeys = new ArrayList<com.google.appengine.api.datastore.Key>(
+                keys.size());
+        for (final Key<?> key : keys) {
+            rawKeys.add(of.typedKeyToRawKey(key));
+        }
+        objectifyCache.deleteAll(rawKeys);
+        
+        final Set<String> deviceIds = new HashSet<String>(4);
+        for (final Object entity : session.get(keys).values()) {
+            if (entity instanceof Device) {
+                deviceIds.add(((Device) entity).id);
+            } else if (entity instanceof Event) {
+                deviceIds.add(((Event) entity).device.getName());
+            }
+        }
+        versions.increment(new HashSet<String>(getDeviceOwners(session, deviceIds).values()));
+    }
+    
+    /**
+     * Get device owners. Owners which are not cached are read with a single
+     * batch get. Unknown devices are ignored.
+     */
+    private Map<String, String> getDeviceOwners(Objectify session, Collection<String> deviceIds) {
+        final Map<String, String> owners = new HashMap<String, String>(deviceIds.size());
+        final List<String> deviceIdsToRead = new ArrayList<String>(4);
+        for (final String deviceId : deviceIds) {
+            final String owner = ownerCache.get(deviceId);
+            if (owner != null) {
+                owners.put(deviceId, owner);
+            } else {
+                deviceIdsToRead.add(deviceId);
+            }
+        }
+        if (!deviceIdsToRead.isEmpty()) {
+            for (final Device device : session.get(Device.class, deviceIdsToRead).values()) {
+                owners.put(device.id, device.user);
+                ownerCache.put(device.id, device.user);
+            }
+        }
+        return owners;
+    }
+    
+    /**
+     * Check that a device is owned by a user. Device owners are cached by this
+     * instance, in front of the Objectify cache.
+     */
+    private void checkDeviceOwner(Objectify session, String user, String deviceId)
+            throws DeviceNotFoundException, AccessDeniedException {
+        String owner = ownerCache.get(deviceId);
+        if (owner == null) {
+            final Device device = session.find(Device.class, deviceId);
+            if (device == null) {
+                throw new DeviceNotFoundException(deviceId);
+            }
+            owner = device.user;
+            ownerCache.put(deviceId, owner);
+        }
+        if (!user.equals(owner)) {
+            throw new AccessDeniedException();
+        }
+    }
 }
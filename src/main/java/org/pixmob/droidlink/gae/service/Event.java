@@ -37,6 +37,7 @@ public class Event {
     @Indexed
     public Key<Device> device;
     public EventType type;
+    @Indexed
     public long date;
     public String number;
     public String name;
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withMethod;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+
+/**
+ * Durable buffer of events waiting to be written to the datastore. Events are
+ * stored as tasks in a pull queue: a worker leases them in bulk, and writes
+ * them with a single batch put.
+ * @author Pixmob
+ */
+class EventBuffer {
+    /**
+     * Maximum number of tasks added to a queue with a single call.
+     */
+    private static final int MAX_TASKS_PER_ADD = 100;
+    
+    private static final String ID_PARAM = "id";
+    private static final String DEVICE_ID_PARAM = "deviceId";
+    private static final String DATE_PARAM = "date";
+    private static final String TYPE_PARAM = "type";
+    private static final String NUMBER_PARAM = "number";
+    private static final String NAME_PARAM = "name";
+    private static final String MESSAGE_PARAM = "message";
+    private static final String BUFFERED_PARAM = "buffered";
+    private final Queue queue;
+    private final long leaseTime;
+    
+    /**
+     * Create a new instance.
+     * @param queue pull queue where events are stored
+     * @param leaseTime delay before a leased event is available again if it
+     *            was not removed, in milliseconds
+     */
+    public EventBuffer(final Queue queue, final long leaseTime) {
+        this.queue = queue;
+        this.leaseTime = leaseTime;
+    }
+    
+    /**
+     * Add an event to this buffer. The event is durable when this method
+     * returns.
+     */
+    public void add(Event event) {
+        queue.add(toTask(event));
+    }
+    
+    /**
+     * Add several events to this buffer. Tasks are added by batches of
+     * {@link #MAX_TASKS_PER_ADD}. Events are durable when this method returns.
+     */
+    public void add(Collection<Event> events) {
+        final List<TaskOptions> tasks = new ArrayList<TaskOptions>(Math.min(events.size(),
+            MAX_TASKS_PER_ADD));
+        for (final Event event : events) {
+            tasks.add(toTask(event));
+            if (tasks.size() == MAX_TASKS_PER_ADD) {
+                queue.add(tasks);
+                tasks.clear();
+            }
+        }
+        if (!tasks.isEmpty()) {
+            queue.add(tasks);
+        }
+    }
+    
+    private static TaskOptions toTask(Event event) {
+        final TaskOptions task = withMethod(TaskOptions.Method.PULL)
+                .param(ID_PARAM, event.id).param(DEVICE_ID_PARAM, event.device.getName())
+                .param(DATE_PARAM, String.valueOf(event.date))
+                .param(TYPE_PARAM, event.type.name())
+                .param(BUFFERED_PARAM, String.valueOf(System.currentTimeMillis()));
+        if (event.number != null) {
+            task.param(NUMBER_PARAM, event.number);
+        }
+        if (event.name != null) {
+            task.param(NAME_PARAM, event.name);
+        }
+        if (event.message != null) {
+            task.param(MESSAGE_PARAM, event.message);
+        }
+        return task;
+    }
+    
+    /**
+     * Lease buffered events. Leased events are not available to other workers
+     * until the lease expires: these events must be removed from the buffer
+     * once written.
+     * @param count maximum number of events to lease
+     */
+    public List<TaskHandle> lease(int count) {
+        return queue.leaseTasks(leaseTime, TimeUnit.MILLISECONDS, count);
+    }
+    
+    /**
+     * Remove leased events from this buffer.
+     */
+    public void remove(List<TaskHandle> tasks) {
+        if (!tasks.isEmpty()) {
+            queue.deleteTask(tasks);
+        }
+    }
+    
+    /**
+     * Read an event from a leased task.
+     * @return the event, or <code>null</code> if the task is not a valid event
+     */
+    public static Event toEvent(TaskHandle task) {
+        final Map<String, List<String>> params;
+        try {
+            params = task.extractParams();
+        } catch (Exception e) {
+            return null;
+        }
+        
+        final String id = getParam(params, ID_PARAM);
+        final String deviceId = getParam(params, DEVICE_ID_PARAM);
+        final String date = getParam(params, DATE_PARAM);
+        final String type = getParam(params, TYPE_PARAM);
+        if (id == null || deviceId == null || date == null || type == null) {
+            return null;
+        }
+        
+        final Event event = new Event();
+        event.id = id;
+        event.device = new Key<Device>(Device.class, deviceId);
+        try {
+            event.date = Long.parseLong(date);
+            event.type = EventType.valueOf(type);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        event.number = getParam(params, NUMBER_PARAM);
+        event.name = getParam(params, NAME_PARAM);
+        event.message = getParam(params, MESSAGE_PARAM);
+        
+        return event;
+    }
+    
+    /**
+     * Get the time when an event was added to this buffer.
+     * @return buffered time in milliseconds, or <code>0</code> if this time is
+     *         unknown
+     */
+    public static long getBufferedTime(TaskHandle task) {
+        try {
+            final String bufferedTime = getParam(task.extractParams(), BUFFERED_PARAM);
+            return bufferedTime == null ? 0 : Long.parseLong(bufferedTime);
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+    
+    private static String getParam(Map<String, List<String>> params, String name) {
+        final List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+}
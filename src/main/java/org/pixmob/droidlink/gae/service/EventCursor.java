@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Cursor;
+
+/**
+ * Position in an event listing spanning several devices. A datastore cursor is
+ * kept for each device. The string representation of this class is opaque to
+ * clients, and is safe to use in an URL.
+ * @author Pixmob
+ */
+class EventCursor {
+    private static final String UTF8 = "UTF-8";
+    private static final String DEVICE_SEPARATOR = "~";
+    private static final String CURSOR_SEPARATOR = ".";
+    private final Map<String, Cursor> cursors = new LinkedHashMap<String, Cursor>(4);
+    
+    public Cursor get(String deviceId) {
+        return cursors.get(deviceId);
+    }
+    
+    public void put(String deviceId, Cursor cursor) {
+        cursors.put(deviceId, cursor);
+    }
+    
+    public Map<String, Cursor> getCursors() {
+        return Collections.unmodifiableMap(cursors);
+    }
+    
+    public boolean isEmpty() {
+        return cursors.isEmpty();
+    }
+    
+    /**
+     * Parse a cursor string.
+     * @return <code>null</code> if the cursor string is <code>null</code> or
+     *         empty
+     * @throws IllegalArgumentException if the cursor string is invalid
+     */
+    public static EventCursor parse(String str) {
+        if (str == null || str.length() == 0) {
+            return null;
+        }
+        
+        final EventCursor cursor = new EventCursor();
+        for (final String token : str.split(DEVICE_SEPARATOR)) {
+            final int i = token.indexOf(CURSOR_SEPARATOR);
+            if (i == -1) {
+                throw new IllegalArgumentException("Invalid event cursor: " + str);
+            }
+            final String deviceId = decodeHex(token.substring(0, i));
+            cursor.put(deviceId, Cursor.fromWebSafeString(token.substring(i + 1)));
+        }
+        return cursor;
+    }
+    
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder(64 * cursors.size());
+        for (final Map.Entry<String, Cursor> e : cursors.entrySet()) {
+            if (buf.length() != 0) {
+                buf.append(DEVICE_SEPARATOR);
+            }
+            buf.append(encodeHex(e.getKey())).append(CURSOR_SEPARATOR)
+                    .append(e.getValue().toWebSafeString());
+        }
+        return buf.toString();
+    }
+    
+    private static String encodeHex(String str) {
+        final byte[] data;
+        try {
+            data = str.getBytes(UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+        final StringBuilder buf = new StringBuilder(data.length * 2);
+        for (final byte b : data) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+            buf.append(Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
+    
+    private static String decodeHex(String str) {
+        if (str.length() % 2 != 0) {
+            throw new IllegalArgumentException("Invalid event cursor");
+        }
+        final byte[] data = new byte[str.length() / 2];
+        for (int i = 0; i < data.length; ++i) {
+            final int hi = Character.digit(str.charAt(i * 2), 16);
+            final int lo = Character.digit(str.charAt(i * 2 + 1), 16);
+            if (hi == -1 || lo == -1) {
+                throw new IllegalArgumentException("Invalid event cursor");
+            }
+            data[i] = (byte) ((hi << 4) | lo);
+        }
+        try {
+            return new String(data, UTF8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not supported", e);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+
+/**
+ * Merge events from several devices, sorted by date (most recent first). Each
+ * device query must return events sorted by date: only the next event of each
+ * device is kept in memory.
+ * <p>
+ * The position of a device is updated when one of its events is returned by
+ * {@link #next()}: an event which was only read by {@link #hasNext()} is
+ * returned again when the listing is resumed from the position.
+ * @author Pixmob
+ */
+class EventMerger implements Iterator<Event> {
+    private static final Comparator<DeviceEvents> MOST_RECENT_FIRST = new Comparator<DeviceEvents>() {
+        @Override
+        public int compare(DeviceEvents a, DeviceEvents b) {
+            if (a.next.date != b.next.date) {
+                return a.next.date > b.next.date ? -1 : 1;
+            }
+            // Sort events with the same date by device, for a stable order.
+            return a.deviceId.compareTo(b.deviceId);
+        }
+    };
+    private final PriorityQueue<DeviceEvents> queue;
+    private final EventCursor position;
+    private Event nextEvent;
+    private String nextDeviceId;
+    private Cursor nextCursor;
+    
+    /**
+     * Create a new instance.
+     * @param queries query results for each device
+     * @param position cursor updated with the position of each device when an
+     *            event is returned, or <code>null</code> if cursors are not
+     *            required
+     */
+    public EventMerger(final Map<String, QueryResultIterator<Event>> queries,
+            final EventCursor position) {
+        this.position = position;
+        queue = new PriorityQueue<DeviceEvents>(Math.max(1, queries.size()), MOST_RECENT_FIRST);
+        for (final Map.Entry<String, QueryResultIterator<Event>> e : queries.entrySet()) {
+            final DeviceEvents deviceEvents = new DeviceEvents(e.getKey(), e.getValue());
+            if (deviceEvents.fetch(position != null)) {
+                queue.add(deviceEvents);
+            }
+        }
+    }
+    
+    @Override
+    public boolean hasNext() {
+        if (nextEvent != null) {
+            return true;
+        }
+        final DeviceEvents deviceEvents = queue.poll();
+        if (deviceEvents == null) {
+            return false;
+        }
+        
+        // The cursor located after this event is kept until the event is
+        // returned: the device query is moved to its next event.
+        nextEvent = deviceEvents.next;
+        nextDeviceId = deviceEvents.deviceId;
+        nextCursor = deviceEvents.cursor;
+        if (deviceEvents.fetch(position != null)) {
+            queue.add(deviceEvents);
+        }
+        return true;
+    }
+    
+    @Override
+    public Event next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Event event = nextEvent;
+        if (position != null) {
+            position.put(nextDeviceId, nextCursor);
+        }
+        nextEvent = null;
+        nextDeviceId = null;
+        nextCursor = null;
+        return event;
+    }
+    
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Events from a single device.
+     * @author Pixmob
+     */
+    private static class DeviceEvents {
+        public final String deviceId;
+        public final QueryResultIterator<Event> events;
+        public Event next;
+        public Cursor cursor;
+        
+        public DeviceEvents(final String deviceId, final QueryResultIterator<Event> events) {
+            this.deviceId = deviceId;
+            this.events = events;
+        }
+        
+        /**
+         * Fetch the next event from this device.
+         * @param withCursor set to <code>true</code> to get the cursor located
+         *            after the next event
+         * @return <code>false</code> if there are no more events
+         */
+        public boolean fetch(boolean withCursor) {
+            if (!events.hasNext()) {
+                next = null;
+                cursor = null;
+                return false;
+            }
+            next = events.next();
+            if (withCursor) {
+                cursor = events.getCursor();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import java.util.List;
+
+/**
+ * A page of events returned by a delta synchronization.
+ * @author Pixmob
+ */
+public class EventSync extends Page<Event> {
+    private final long watermark;
+    private final boolean resyncRequired;
+    
+    public EventSync(final List<Event> items, final String cursor, final long watermark,
+            final boolean resyncRequired) {
+        super(items, cursor);
+        this.watermark = watermark;
+        this.resyncRequired = resyncRequired;
+    }
+    
+    /**
+     * Get the timestamp to use for the next synchronization, once every page
+     * was read. This value is the same for every page of a synchronization.
+     */
+    public long getWatermark() {
+        return watermark;
+    }
+    
+    /**
+     * Check if events were deleted since the previous synchronization: in
+     * this case, no event is returned, and the client must read every event
+     * again.
+     */
+    public boolean isResyncRequired() {
+        return resyncRequired;
+    }
+}
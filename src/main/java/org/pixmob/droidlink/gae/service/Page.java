@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A page of results, with an opaque cursor for getting the next page.
+ * @author Pixmob
+ */
+public class Page<T> implements Iterable<T> {
+    private final List<T> items;
+    private final String cursor;
+    
+    public Page(final List<T> items, final String cursor) {
+        this.items = items;
+        this.cursor = cursor;
+    }
+    
+    public List<T> getItems() {
+        return items;
+    }
+    
+    /**
+     * Get the cursor to use for getting the next page. This cursor is
+     * <code>null</code> if there are no more results.
+     */
+    public String getCursor() {
+        return cursor;
+    }
+    
+    @Override
+    public Iterator<T> iterator() {
+        return items.iterator();
+    }
+}
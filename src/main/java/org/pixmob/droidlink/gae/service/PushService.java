@@ -15,31 +15,51 @@
  */
 package org.pixmob.droidlink.gae.service;
 
-import java.io.IOException;
-import java.util.logging.Level;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.pixmob.droidlink.gae.Constants;
+import org.pixmob.droidlink.gae.push.PushMessage;
+import org.pixmob.droidlink.gae.push.PushStatus;
+import org.pixmob.droidlink.gae.push.PushTransport;
 
-import com.google.android.c2dm.server.C2DMessaging;
+import com.google.android.c2dm.server.InvalidRegistrationHandler;
+import com.google.appengine.api.memcache.MemcacheService;
 import com.google.inject.Inject;
 
 /**
- * Send push notifications to user devices.
+ * Send push notifications to user devices. Registrations rejected by the push
+ * server are cleared from devices.
  * @author Pixmob
  */
-public class PushService {
+public class PushService implements InvalidRegistrationHandler {
+    private static final String PRUNED_REGISTRATIONS_KEY = "push:prunedRegistrations";
     private final Logger logger = Logger.getLogger(getClass().getName());
-    private final C2DMessaging c2dm;
+    private final PushTransport pushTransport;
     private final DeviceService deviceService;
+    private final MemcacheService memcacheService;
+    private final AtomicLong prunedRegistrations = new AtomicLong();
     
     @Inject
-    PushService(final DeviceService deviceService, final C2DMessaging c2dm) {
+    PushService(final DeviceService deviceService, final PushTransport pushTransport,
+            final MemcacheService memcacheService) {
         this.deviceService = deviceService;
-        this.c2dm = c2dm;
+        this.pushTransport = pushTransport;
+        this.memcacheService = memcacheService;
     }
     
+    /**
+     * Send a sync message to every device of a user. Messages which could not
+     * be sent are scheduled for retry once every device was reached.
+     */
     public void syncDevices(String user, String deviceIdSource, String syncToken) {
+        final List<String> registrationIds = new ArrayList<String>(4);
         for (final Device device : deviceService.getDevices(user)) {
             if (device.id.equals(deviceIdSource) || device.c2dm == null) {
                 // The sync is not started for devices without a C2DM
@@ -47,14 +67,65 @@ public class PushService {
                 // sync.
                 continue;
             }
-            
-            final String collapseKey = Long.toHexString((user + "#" + device.id).hashCode());
-            try {
-                c2dm.sendWithRetry(device.c2dm, collapseKey, Constants.C2DM_MESSAGE_EXTRA,
-                    Constants.C2DM_MESSAGE_SYNC, Constants.C2DM_SYNC_TOKEN_EXTRA, syncToken);
-            } catch (IOException e) {
-                logger.log(Level.SEVERE, "Failed to trigger user sync with C2DM", e);
+            registrationIds.add(device.c2dm);
+        }
+        if (registrationIds.isEmpty()) {
+            return;
+        }
+        
+        // Collapse keys are scoped to a device: the same key is used for
+        // every device of a user.
+        final Map<String, String> data = new LinkedHashMap<String, String>(2);
+        data.put(Constants.C2DM_MESSAGE_EXTRA, Constants.C2DM_MESSAGE_SYNC);
+        if (syncToken != null) {
+            data.put(Constants.C2DM_SYNC_TOKEN_EXTRA, syncToken);
+        }
+        final PushMessage message = new PushMessage(Long.toHexString(user.hashCode()), data,
+                true);
+        
+        final List<String> retries = new ArrayList<String>(4);
+        final List<String> invalidRegistrations = new ArrayList<String>(1);
+        for (final Map.Entry<String, PushStatus> e : pushTransport.send(message,
+            registrationIds).entrySet()) {
+            if (PushStatus.RETRY.equals(e.getValue())) {
+                retries.add(e.getKey());
+            } else if (PushStatus.UNREGISTERED.equals(e.getValue())) {
+                invalidRegistrations.add(e.getKey());
             }
         }
+        if (!retries.isEmpty()) {
+            logger.info("Retry later push messages for " + retries.size() + " device(s)");
+            pushTransport.retry(message, retries);
+        }
+        if (!invalidRegistrations.isEmpty()) {
+            pruneRegistrations(user, invalidRegistrations);
+        }
+    }
+    
+    @Override
+    public void onInvalidRegistration(String registrationId) {
+        pruneRegistrations(null, Collections.singleton(registrationId));
+    }
+    
+    private void pruneRegistrations(String user, Collection<String> registrationIds) {
+        final int count = deviceService.pruneRegistrations(user, registrationIds);
+        if (count != 0) {
+            logger.info("Invalid C2DM registrations cleared: " + count);
+            prunedRegistrations.addAndGet(count);
+            memcacheService.increment(PRUNED_REGISTRATIONS_KEY, count, 0L);
+        }
+    }
+    
+    /**
+     * Get statistics for this service. Pruned registrations are counted for
+     * this instance, and for every instance (this counter is kept in
+     * memcache, and may be reset).
+     */
+    public Map<String, Long> getStats() {
+        final Map<String, Long> stats = new LinkedHashMap<String, Long>(2);
+        stats.put("prunedRegistrations", prunedRegistrations.get());
+        final Object total = memcacheService.get(PRUNED_REGISTRATIONS_KEY);
+        stats.put("prunedRegistrationsTotal", total == null ? 0 : ((Number) total).longValue());
+        return stats;
     }
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import java.util.List;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Unindexed;
+
+/**
+ * Registered user datastore entity: there is one entity for every user with at
+ * least one registered device. The entity lists the user devices, and is
+ * updated in transactions: unlike a query on the device owner, it is strongly
+ * consistent. The users of the registry are read with keys-only queries.
+ * @author Pixmob
+ */
+@Unindexed
+public class RegisteredUser {
+    @Id
+    public String user;
+    /**
+     * Identifiers of the user devices. This value is <code>null</code> for
+     * entities written before devices were listed.
+     */
+    public List<String> devices;
+    /**
+     * Date when events of the user were last deleted by the user. Expired
+     * events are not counted.
+     */
+    public long eventsDeleted;
+    
+    public RegisteredUser() {
+    }
+    
+    public RegisteredUser(final String user) {
+        this.user = user;
+    }
+    
+    @Override
+    public String toString() {
+        return "RegisteredUser[user=" + user + "]";
+    }
+}
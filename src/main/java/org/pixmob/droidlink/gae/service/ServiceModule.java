@@ -15,6 +15,7 @@
  */
 package org.pixmob.droidlink.gae.service;
 
+import com.google.android.c2dm.server.InvalidRegistrationHandler;
 import com.google.inject.AbstractModule;
 import com.google.inject.Singleton;
 import com.googlecode.objectify.ObjectifyFactory;
@@ -29,9 +30,12 @@ public class ServiceModule extends AbstractModule {
         final ObjectifyFactory of = new ObjectifyFactory();
         of.register(Device.class);
         of.register(Event.class);
+        of.register(RegisteredUser.class);
+        of.register(DeleteJob.class);
         bind(ObjectifyFactory.class).toInstance(of);
         
         bind(DeviceService.class).in(Singleton.class);
         bind(PushService.class).in(Singleton.class);
+        bind(InvalidRegistrationHandler.class).to(PushService.class);
     }
 }
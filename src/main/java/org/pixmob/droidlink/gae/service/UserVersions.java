@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * Version of the devices and events of each user, shared by every instance
+ * through memcache. A version is incremented whenever a device or an event of
+ * the user is written, so that unchanged data is detected without querying
+ * the datastore. Versions start from the current time: if memcache evicts a
+ * version, the next version is still different from the previous ones.
+ * @author Pixmob
+ */
+class UserVersions {
+    private static final String KEY_PREFIX = "version:";
+    private final MemcacheService memcacheService;
+    
+    public UserVersions(final MemcacheService memcacheService) {
+        this.memcacheService = memcacheService;
+    }
+    
+    /**
+     * Get the version of a user.
+     */
+    public long get(String user) {
+        final String key = KEY_PREFIX + user;
+        Object version = memcacheService.get(key);
+        if (version == null) {
+            // Another instance may be initializing this version.
+            memcacheService.put(key, System.currentTimeMillis(), null,
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            version = memcacheService.get(key);
+        }
+        
+        // If memcache is not available, the version never matches.
+        return version instanceof Number ? ((Number) version).longValue() : System
+                .currentTimeMillis();
+    }
+    
+    /**
+     * Increment the version of a user.
+     */
+    public void increment(String user) {
+        memcacheService.increment(KEY_PREFIX + user, 1, System.currentTimeMillis());
+    }
+    
+    /**
+     * Increment the version of several users, with a single call.
+     */
+    public void increment(Collection<String> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+        final List<String> keys = new ArrayList<String>(users.size());
+        for (final String user : users) {
+            keys.add(KEY_PREFIX + user);
+        }
+        memcacheService.incrementAll(keys, 1, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.google.inject.Singleton;
+
+/**
+ * Compress responses with gzip when the client accepts it. The response is
+ * only compressed if a body is written: empty responses (such as
+ * <code>304 Not Modified</code>) are left untouched.
+ * @author Pixmob
+ */
+@Singleton
+public class GzipFilter implements Filter {
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+    
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        final String acceptEncoding = ((HttpServletRequest) request)
+                .getHeader("Accept-Encoding");
+        if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
+            chain.doFilter(request, response);
+            return;
+        }
+        
+        final GzipResponse gzipResponse = new GzipResponse((HttpServletResponse) response);
+        chain.doFilter(request, gzipResponse);
+        gzipResponse.finish();
+    }
+    
+    @Override
+    public void destroy() {
+    }
+    
+    /**
+     * Response wrapper: the compressed stream is created when the body is
+     * first written.
+     * @author Pixmob
+     */
+    private static class GzipResponse extends HttpServletResponseWrapper {
+        private GzipOutputStream output;
+        private PrintWriter writer;
+        
+        public GzipResponse(final HttpServletResponse response) {
+            super(response);
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) {
+                throw new IllegalStateException("getWriter() was already called");
+            }
+            if (output == null) {
+                output = new GzipOutputStream((HttpServletResponse) getResponse());
+            }
+            return output;
+        }
+        
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (output != null) {
+                    throw new IllegalStateException("getOutputStream() was already called");
+                }
+                output = new GzipOutputStream((HttpServletResponse) getResponse());
+                writer = new PrintWriter(new OutputStreamWriter(output, getCharacterEncoding()));
+            }
+            return writer;
+        }
+        
+        @Override
+        public void setContentLength(int len) {
+            // The compressed length is not known.
+        }
+        
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            } else if (output != null) {
+                output.flush();
+            }
+        }
+        
+        public void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            if (output != null) {
+                output.finish();
+            }
+        }
+    }
+    
+    /**
+     * Output stream compressing the response body. The response headers are
+     * updated before the first byte is written.
+     * @author Pixmob
+     */
+    private static class GzipOutputStream extends ServletOutputStream {
+        private final HttpServletResponse response;
+        private GZIPOutputStream gzip;
+        
+        public GzipOutputStream(final HttpServletResponse response) {
+            this.response = response;
+        }
+        
+        private OutputStream getStream() throws IOException {
+            if (gzip == null) {
+                response.setHeader("Content-Encoding", "gzip");
+                gzip = new GZIPOutputStream(response.getOutputStream());
+            }
+            return gzip;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            getStream().write(b);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len != 0) {
+                getStream().write(b, off, len);
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            if (gzip != null) {
+                gzip.flush();
+            }
+        }
+        
+        public void finish() throws IOException {
+            if (gzip != null) {
+                gzip.finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import static org.pixmob.droidlink.gae.Constants.BINARY_MIME_TYPE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.inject.TypeLiteral;
+import com.google.sitebricks.client.Transport;
+import com.google.sitebricks.client.transport.Json;
+import com.google.sitebricks.headless.Request;
+
+/**
+ * Binary transport for remote objects. Each record is written with its
+ * {@link Externalizable} encoding, prefixed with its length as an
+ * <code>int</code>. A stream holds any number of records: the end of the
+ * stream is the end of the last record. This transport is used when clients
+ * send or accept the <code>application/octet-stream</code> content type.
+ * @author Pixmob
+ */
+public class Binary implements Transport {
+    /**
+     * Maximum length of a record: a remote object holds a few strings, which
+     * are encoded with at most 65537 bytes each.
+     */
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+    
+    /**
+     * Get the transport for reading the request body, from the request
+     * content type.
+     */
+    public static Class<? extends Transport> forContent(Request request) {
+        final String contentType = request.header("Content-Type");
+        return contentType != null && contentType.startsWith(BINARY_MIME_TYPE) ? Binary.class
+                : Json.class;
+    }
+    
+    /**
+     * Return <code>true</code> if the client accepts a binary response.
+     */
+    public static boolean isAccepted(Request request) {
+        final String accept = request.header("Accept");
+        return accept != null && accept.contains(BINARY_MIME_TYPE);
+    }
+    
+    @Override
+    public String contentType() {
+        return BINARY_MIME_TYPE;
+    }
+    
+    @Override
+    public <T> T in(InputStream in, Class<T> type) throws IOException {
+        final DataInputStream input = new DataInputStream(in);
+        if (!type.isArray()) {
+            final T record = readRecord(input, type);
+            if (record == null) {
+                throw new EOFException("Missing record");
+            }
+            return record;
+        }
+        
+        final Class<?> recordType = type.getComponentType();
+        final List<Object> records = new ArrayList<Object>(16);
+        for (Object record; (record = readRecord(input, recordType)) != null;) {
+            records.add(record);
+        }
+        return type.cast(records.toArray((Object[]) Array.newInstance(recordType, records
+                .size())));
+    }
+    
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T in(InputStream in, TypeLiteral<T> type) throws IOException {
+        return in(in, (Class<T>) type.getRawType());
+    }
+    
+    @Override
+    public <T> void out(OutputStream out, Class<T> type, T data) throws IOException {
+        final Iterator<?> records;
+        if (data instanceof Iterator) {
+            records = (Iterator<?>) data;
+        } else if (data instanceof Iterable) {
+            records = ((Iterable<?>) data).iterator();
+        } else if (data instanceof Object[]) {
+            records = Arrays.asList((Object[]) data).iterator();
+        } else {
+            records = Arrays.asList(data).iterator();
+        }
+        
+        // Records are encoded in a reusable buffer, in order to get their
+        // length.
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        final RecordOutput recordOutput = new RecordOutput(buffer);
+        final DataOutputStream output = new DataOutputStream(out);
+        while (records.hasNext()) {
+            final Object record = records.next();
+            if (!(record instanceof Externalizable)) {
+                throw new NotSerializableException(record.getClass().getName());
+            }
+            buffer.reset();
+            ((Externalizable) record).writeExternal(recordOutput);
+            recordOutput.flush();
+            output.writeInt(buffer.size());
+            buffer.writeTo(output);
+        }
+        output.flush();
+    }
+    
+    /**
+     * Read a record from a stream.
+     * @return <code>null</code> at the end of the stream
+     */
+    private static <T> T readRecord(DataInputStream input, Class<T> type) throws IOException {
+        final int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_RECORD_LENGTH) {
+            throw new IOException("Invalid record length: " + length);
+        }
+        
+        final byte[] data = new byte[length];
+        input.readFully(data);
+        
+        final T record;
+        try {
+            record = type.newInstance();
+        } catch (Exception e) {
+            throw new IOException("Cannot create record: " + type.getName(), e);
+        }
+        if (!(record instanceof Externalizable)) {
+            throw new NotSerializableException(type.getName());
+        }
+        try {
+            ((Externalizable) record).readExternal(new RecordInput(new ByteArrayInputStream(
+                    data)));
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Cannot read record: " + type.getName(), e);
+        }
+        return record;
+    }
+    
+    /**
+     * Record output: remote objects only write primitive values.
+     * @author Pixmob
+     */
+    private static class RecordOutput extends DataOutputStream implements ObjectOutput {
+        public RecordOutput(final OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void writeObject(Object obj) throws IOException {
+            throw new NotSerializableException(obj.getClass().getName());
+        }
+    }
+    
+    /**
+     * Record input: remote objects only read primitive values.
+     * @author Pixmob
+     */
+    private static class RecordInput extends DataInputStream implements ObjectInput {
+        public RecordInput(final InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public Object readObject() throws ClassNotFoundException, IOException {
+            throw new NotSerializableException("Objects are not supported");
+        }
+    }
+}
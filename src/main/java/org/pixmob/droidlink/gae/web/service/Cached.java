@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+import org.pixmob.droidlink.gae.Constants;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.TypeLiteral;
+import com.google.sitebricks.client.Transport;
+
+/**
+ * Transport for responses cached in memcache. A cached response is written
+ * as is. Otherwise, the response entity is written with its own transport,
+ * and a copy of the written bytes is stored in memcache once the response is
+ * complete: the response is still streamed to the client. Responses larger
+ * than {@link Constants#RESPONSE_CACHE_MAX_SIZE} are not cached.
+ * <p>
+ * This transport is write-only: it is only used for writing a
+ * {@link CachedResponse} with <code>Reply.as(Cached.class)</code>, and it
+ * cannot read a request body.
+ * @author Pixmob
+ */
+class Cached implements Transport {
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final Injector injector;
+    private final MemcacheService memcacheService;
+    
+    @Inject
+    Cached(final Injector injector, final MemcacheService memcacheService) {
+        this.injector = injector;
+        this.memcacheService = memcacheService;
+    }
+    
+    /**
+     * Get a cached response.
+     * @return <code>null</code> if this response is not cached
+     */
+    static CachedResponse get(MemcacheService memcacheService, String key) {
+        final Object content = memcacheService.get(key);
+        return content instanceof byte[] ? new CachedResponse(key, (byte[]) content) : null;
+    }
+    
+    @Override
+    public String contentType() {
+        return Constants.BINARY_MIME_TYPE;
+    }
+    
+    /**
+     * Unsupported: this transport is write-only.
+     */
+    @Override
+    public <T> T in(InputStream in, Class<T> type) throws IOException {
+        throw new UnsupportedOperationException("Cached responses cannot be read");
+    }
+    
+    /**
+     * Unsupported: this transport is write-only.
+     */
+    @Override
+    public <T> T in(InputStream in, TypeLiteral<T> type) throws IOException {
+        throw new UnsupportedOperationException("Cached responses cannot be read");
+    }
+    
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> void out(OutputStream out, Class<T> type, T data) throws IOException {
+        final CachedResponse response = (CachedResponse) data;
+        if (response.content != null) {
+            out.write(response.content);
+            out.flush();
+            return;
+        }
+        
+        final CopyOutputStream copy = new CopyOutputStream(out,
+                Constants.RESPONSE_CACHE_MAX_SIZE);
+        final Object entity = response.entity;
+        injector.getInstance(response.transport).out(copy, (Class<Object>) entity.getClass(),
+            entity);
+        copy.flush();
+        
+        final byte[] content = copy.getCopy();
+        if (content != null) {
+            memcacheService.put(response.key, content, Expiration
+                    .byDeltaSeconds(Constants.RESPONSE_CACHE_TTL_SECONDS));
+        } else {
+            logger.info("Response too large for cache: " + response.key);
+        }
+    }
+    
+    /**
+     * Output stream keeping a copy of the written bytes, up to a maximum size.
+     * The underlying stream is not closed: the servlet container closes it.
+     * @author Pixmob
+     */
+    private static class CopyOutputStream extends FilterOutputStream {
+        private final int maxSize;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream(4096);
+        
+        public CopyOutputStream(final OutputStream out, final int maxSize) {
+            super(out);
+            this.maxSize = maxSize;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            copy(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            copy(b, off, len);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+        
+        /**
+         * Get the written bytes, or <code>null</code> if too many bytes were
+         * written.
+         */
+        public byte[] getCopy() {
+            return copy == null ? null : copy.toByteArray();
+        }
+        
+        private void copy(byte[] b, int off, int len) {
+            if (copy != null) {
+                if (copy.size() + len > maxSize) {
+                    copy = null;
+                } else {
+                    copy.write(b, off, len);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import com.google.sitebricks.client.Transport;
+
+/**
+ * Response written with the {@link Cached} transport: either the content of a
+ * cached response, or an entity to write with another transport and to
+ * cache.
+ * @author Pixmob
+ */
+final class CachedResponse {
+    final String key;
+    final byte[] content;
+    final Object entity;
+    final Class<? extends Transport> transport;
+    
+    /**
+     * Create a response from a cached content.
+     */
+    public CachedResponse(final String key, final byte[] content) {
+        this.key = key;
+        this.content = content;
+        this.entity = null;
+        this.transport = null;
+    }
+    
+    /**
+     * Create a response to cache once written.
+     * @param transport transport used for writing the entity
+     */
+    public CachedResponse(final String key, final Object entity,
+            final Class<? extends Transport> transport) {
+        this.key = key;
+        this.content = null;
+        this.entity = entity;
+        this.transport = transport;
+    }
+}
@@ -17,33 +17,70 @@ package org.pixmob.droidlink.gae.web.service;
 
 import java.util.logging.Logger;
 
-import com.google.appengine.api.memcache.MemcacheService;
+import javax.servlet.http.HttpServletResponse;
+
+import org.pixmob.droidlink.gae.queue.RefreshCacheQueue;
+import org.pixmob.droidlink.gae.service.DeviceService;
+
+import com.google.appengine.api.taskqueue.Queue;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.google.sitebricks.At;
 import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Request;
 import com.google.sitebricks.headless.Service;
-import com.google.sitebricks.http.Get;
+import com.google.sitebricks.http.Post;
 
 /**
- * Clear data stored by Memcache.
+ * Invalidate cached entities, for administrators only. A single scope is
+ * invalidated: a user (every device and event of the user), a device (the
+ * device and its events), or an entity kind. Cached entities are refreshed in
+ * background: see {@link RefreshCacheQueue}.
  * @author Pixmob
  */
 @At(ClearCacheWebService.URI)
 @Service
 public class ClearCacheWebService {
     public static final String URI = "/api/1/clearcache";
+    public static final String USER_PARAM = "user";
+    public static final String DEVICE_ID_PARAM = "deviceId";
+    public static final String KIND_PARAM = "kind";
     private final Logger logger = Logger.getLogger(getClass().getName());
-    private final MemcacheService memcacheService;
+    private final Queue cacheQueue;
     
     @Inject
-    ClearCacheWebService(final MemcacheService memcacheService) {
-        this.memcacheService = memcacheService;
+    ClearCacheWebService(@Named("cache") final Queue cacheQueue) {
+        this.cacheQueue = cacheQueue;
     }
     
-    @Get
-    public Reply<?> clearCache() {
-        logger.info("Clear cache");
-        memcacheService.clearAll();
-        return Reply.saying().ok();
+    @Post
+    public Reply<?> clearCache(Request request) {
+        final String user = request.param(USER_PARAM);
+        final String deviceId = request.param(DEVICE_ID_PARAM);
+        final String kind = request.param(KIND_PARAM);
+        
+        final int scopeCount = (user != null ? 1 : 0) + (deviceId != null ? 1 : 0)
+                + (kind != null ? 1 : 0);
+        if (scopeCount != 1) {
+            logger.warning("A single cache scope is required: user, deviceId or kind");
+            return Reply.saying().error();
+        }
+        
+        if (user != null) {
+            logger.info("Clear cache for user " + user);
+            RefreshCacheQueue.start(cacheQueue, RefreshCacheQueue.USER_PARAM, user);
+        } else if (deviceId != null) {
+            logger.info("Clear cache for device " + deviceId);
+            RefreshCacheQueue.start(cacheQueue, RefreshCacheQueue.DEVICE_ID_PARAM, deviceId);
+        } else {
+            if (!DeviceService.CACHED_KINDS.contains(kind)) {
+                logger.warning("Invalid entity kind: " + kind);
+                return Reply.saying().error();
+            }
+            logger.info("Clear cache for kind " + kind);
+            RefreshCacheQueue.start(cacheQueue, RefreshCacheQueue.KIND_PARAM, kind);
+        }
+        
+        return Reply.saying().status(HttpServletResponse.SC_ACCEPTED);
     }
 }
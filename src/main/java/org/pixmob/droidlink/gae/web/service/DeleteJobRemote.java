@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import org.pixmob.droidlink.gae.service.DeleteJob;
+
+/**
+ * Remote representation of a {@link DeleteJob} entity.
+ * @author Pixmob
+ */
+public class DeleteJobRemote {
+    public long id;
+    public long deleted;
+    public boolean done;
+    
+    public DeleteJobRemote() {
+    }
+    
+    public DeleteJobRemote(final DeleteJob job) {
+        id = job.id;
+        deleted = job.deleted;
+        done = job.done;
+    }
+    
+    public long getId() {
+        return id;
+    }
+    
+    public void setId(long id) {
+        this.id = id;
+    }
+    
+    public long getDeleted() {
+        return deleted;
+    }
+    
+    public void setDeleted(long deleted) {
+        this.deleted = deleted;
+    }
+    
+    public boolean isDone() {
+        return done;
+    }
+    
+    public void setDone(boolean done) {
+        this.done = done;
+    }
+}
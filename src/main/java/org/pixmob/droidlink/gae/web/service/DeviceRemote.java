@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import org.codehaus.jackson.JsonGenerator;
 import org.pixmob.droidlink.gae.service.Device;
 
 
@@ -42,6 +43,18 @@ public class DeviceRemote implements Externalizable {
         // Note: the C2DM key is not included from the datastore to the client.
     }
     
+    /**
+     * Write a device as a JSON object, with the same fields as a remote
+     * device.
+     */
+    public static void write(JsonGenerator jgen, Device device) throws IOException {
+        jgen.writeStartObject();
+        jgen.writeStringField("id", device.id);
+        jgen.writeStringField("name", device.name);
+        jgen.writeNullField("c2dm");
+        jgen.writeEndObject();
+    }
+    
     public String getId() {
         return id;
     }
@@ -15,23 +15,30 @@
  */
 package org.pixmob.droidlink.gae.web.service;
 
-import static com.google.appengine.api.taskqueue.TaskOptions.Builder.withUrl;
+import static org.pixmob.droidlink.gae.Constants.BINARY_MIME_TYPE;
 import static org.pixmob.droidlink.gae.Constants.JSON_MIME_TYPE;
 
-import java.util.Collection;
-import java.util.HashSet;
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.pixmob.droidlink.gae.queue.DeleteJobQueue;
 import org.pixmob.droidlink.gae.queue.SyncQueue;
 import org.pixmob.droidlink.gae.service.AccessDeniedException;
+import org.pixmob.droidlink.gae.service.DeleteJob;
 import org.pixmob.droidlink.gae.service.Device;
 import org.pixmob.droidlink.gae.service.DeviceNotFoundException;
 import org.pixmob.droidlink.gae.service.DeviceService;
 
+import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterators;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.google.sitebricks.At;
@@ -56,6 +63,8 @@ public class DeviceWebService {
     private final UserService userService;
     private final DeviceService deviceService;
     private final Queue syncQueue;
+    private final Queue deleteQueue;
+    private final MemcacheService memcacheService;
     
     /**
      * Package protected constructor: use Guice to get an instance of this
@@ -63,10 +72,13 @@ public class DeviceWebService {
      */
     @Inject
     DeviceWebService(final DeviceService deviceService, final UserService userService,
-            @Named("sync") final Queue syncQueue) {
+            @Named("sync") final Queue syncQueue, @Named("delete") final Queue deleteQueue,
+            final MemcacheService memcacheService) {
         this.deviceService = deviceService;
         this.userService = userService;
         this.syncQueue = syncQueue;
+        this.deleteQueue = deleteQueue;
+        this.memcacheService = memcacheService;
     }
     
     @At("/:deviceId/sync")
@@ -86,7 +98,7 @@ public class DeviceWebService {
     
     @At("/:deviceId")
     @Get
-    public Reply<?> getDevice(@Named("deviceId") String deviceId) {
+    public Reply<?> getDevice(Request request, @Named("deviceId") String deviceId) {
         final User user = userService.getCurrentUser();
         if (user == null) {
             return Reply.saying().unauthorized();
@@ -101,26 +113,43 @@ public class DeviceWebService {
             return Reply.saying().forbidden();
         }
         
+        if (Binary.isAccepted(request)) {
+            return Reply.with(new DeviceRemote(device)).as(Binary.class).type(BINARY_MIME_TYPE);
+        }
         return Reply.with(new DeviceRemote(device)).as(Json.class).type(JSON_MIME_TYPE);
     }
     
     @Get
-    public Reply<?> getDevices() {
+    public Reply<?> getDevices(Request request) {
         final User user = userService.getCurrentUser();
         if (user == null) {
             return Reply.saying().unauthorized();
         }
         
-        final Collection<DeviceRemote> results = new HashSet<DeviceRemote>(4);
-        final Iterable<Device> devices = deviceService.getDevices(user.getEmail());
-        for (final Device d : devices) {
-            results.add(new DeviceRemote(d));
+        // Unchanged devices are not read again: the version is checked first.
+        final boolean binary = Binary.isAccepted(request);
+        final String etag = EntityTags.get(deviceService.getVersion(user.getEmail()), binary);
+        if (EntityTags.isNotModified(request, etag)) {
+            return Reply.saying().status(HttpServletResponse.SC_NOT_MODIFIED).headers(
+                EntityTags.headers(etag));
         }
-        if (results.isEmpty()) {
+        
+        // Devices are written while the query results are read.
+        final Iterator<Device> devices = deviceService.getDevices(user.getEmail()).iterator();
+        if (!devices.hasNext()) {
             return Reply.saying().noContent();
         }
         
-        return Reply.with(results).as(Json.class).type(JSON_MIME_TYPE);
+        if (binary) {
+            return Reply.with(Iterators.transform(devices, new Function<Device, DeviceRemote>() {
+                @Override
+                public DeviceRemote apply(Device device) {
+                    return new DeviceRemote(device);
+                }
+            })).as(Binary.class).type(BINARY_MIME_TYPE).headers(EntityTags.headers(etag));
+        }
+        return Reply.with(new DeviceStream(devices)).as(Json.class).type(JSON_MIME_TYPE)
+                .headers(EntityTags.headers(etag));
     }
     
     @At("/:deviceId")
@@ -131,7 +160,8 @@ public class DeviceWebService {
             return Reply.saying().unauthorized();
         }
         
-        final DeviceRemote device = request.read(DeviceRemote.class).as(Json.class);
+        final DeviceRemote device = request.read(DeviceRemote.class).as(
+            Binary.forContent(request));
         logger.info("Register device " + deviceId);
         try {
             deviceService.registerDevice(user.getEmail(), deviceId, device.name, device.c2dm);
@@ -150,15 +180,16 @@ public class DeviceWebService {
         }
         
         logger.info("Unregister all devices");
+        final DeleteJob job;
         try {
-            deviceService.unregisterDevice(user.getEmail(), null);
+            job = deviceService.unregisterDevice(user.getEmail(), null);
         } catch (AccessDeniedException e) {
             return Reply.saying().forbidden();
         }
         
         triggerUserSync(user, null, null);
         
-        return Reply.saying().ok();
+        return startDeleteJob(job);
     }
     
     @At("/:deviceId")
@@ -170,28 +201,43 @@ public class DeviceWebService {
         }
         
         logger.info("Unregister device " + deviceId);
+        final DeleteJob job;
         try {
-            deviceService.unregisterDevice(user.getEmail(), deviceId);
+            job = deviceService.unregisterDevice(user.getEmail(), deviceId);
         } catch (AccessDeniedException e) {
             return Reply.saying().forbidden();
         }
         
         triggerUserSync(user, deviceId, null);
         
-        return Reply.saying().ok();
+        return startDeleteJob(job);
+    }
+    
+    private Reply<?> startDeleteJob(DeleteJob job) {
+        // Device events are deleted in background: the client may follow the
+        // job.
+        DeleteJobQueue.start(deleteQueue, job);
+        return Reply.with(new DeleteJobRemote(job)).as(Json.class).type(JSON_MIME_TYPE)
+                .status(HttpServletResponse.SC_ACCEPTED);
     }
     
     private void triggerUserSync(User user, String deviceIdSource, String token) {
         // Use a queue to close the Http request as soon as possible.
-        logger.info("Queue event sync for user " + user.getEmail());
-        final TaskOptions taskOptions = withUrl(SyncQueue.URI).param(SyncQueue.USER_PARAM,
-            user.getEmail());
-        if (deviceIdSource != null) {
-            taskOptions.param(SyncQueue.DEVICE_ID_SOURCE_PARAM, deviceIdSource);
+        SyncQueue.trigger(syncQueue, memcacheService, user.getEmail(), deviceIdSource, token);
+    }
+    
+    /**
+     * User devices, written as JSON objects.
+     * @author Pixmob
+     */
+    private static class DeviceStream extends JsonStream<Device> {
+        public DeviceStream(final Iterator<Device> devices) {
+            super(devices);
         }
-        if (token != null) {
-            taskOptions.param(SyncQueue.SYNC_TOKEN_PARAM, token);
+        
+        @Override
+        protected void write(JsonGenerator jgen, Device device) throws IOException {
+            DeviceRemote.write(jgen, device);
         }
-        syncQueue.add(taskOptions);
     }
 }
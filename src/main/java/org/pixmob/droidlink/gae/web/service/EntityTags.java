@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.sitebricks.headless.Request;
+
+/**
+ * Entity tags for conditional requests. Tags are derived from the version of
+ * the user data, and from the response format. Tags are weak: the same tag is
+ * used for compressed and uncompressed responses.
+ * @author Pixmob
+ */
+final class EntityTags {
+    private EntityTags() {
+    }
+    
+    /**
+     * Get the entity tag of a response.
+     * @param version version of the user data
+     * @param binary <code>true</code> for a binary response
+     */
+    public static String get(long version, boolean binary) {
+        return "W/\"" + Long.toHexString(version) + (binary ? "-bin" : "") + "\"";
+    }
+    
+    /**
+     * Return <code>true</code> if the client already has the response with
+     * this entity tag.
+     */
+    public static boolean isNotModified(Request request, String etag) {
+        final String ifNoneMatch = request.header("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        final String value = stripWeak(etag);
+        for (final String candidate : ifNoneMatch.split(",")) {
+            final String tag = candidate.trim();
+            if ("*".equals(tag) || value.equals(stripWeak(tag))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Get the headers to send with a response: the client must revalidate the
+     * response before using it.
+     */
+    public static Map<String, String> headers(String etag) {
+        final Map<String, String> headers = new LinkedHashMap<String, String>(4);
+        headers.put("ETag", etag);
+        headers.put("Cache-Control", "private, no-cache");
+        headers.put("Vary", "Accept, Accept-Encoding");
+        return headers;
+    }
+    
+    private static String stripWeak(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
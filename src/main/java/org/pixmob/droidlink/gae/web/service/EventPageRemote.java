@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import java.util.Collection;
+
+/**
+ * A page of events, with the cursor to use for getting the next page.
+ * @author Pixmob
+ */
+public class EventPageRemote {
+    public String cursor;
+    public Collection<EventRemote> events;
+    
+    public String getCursor() {
+        return cursor;
+    }
+    
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+    
+    public Collection<EventRemote> getEvents() {
+        return events;
+    }
+    
+    public void setEvents(Collection<EventRemote> events) {
+        this.events = events;
+    }
+}
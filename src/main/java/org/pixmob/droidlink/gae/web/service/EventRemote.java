@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 
+import org.codehaus.jackson.JsonGenerator;
 import org.pixmob.droidlink.gae.service.Event;
 
 
@@ -49,6 +50,21 @@ public class EventRemote implements Externalizable {
         message = event.message;
     }
     
+    /**
+     * Write an event as a JSON object, with the same fields as a remote event.
+     */
+    public static void write(JsonGenerator jgen, Event event) throws IOException {
+        jgen.writeStartObject();
+        jgen.writeStringField("id", event.id);
+        jgen.writeStringField("deviceId", event.device.getName());
+        jgen.writeNumberField("created", event.date);
+        jgen.writeNumberField("type", event.type.ordinal());
+        jgen.writeStringField("name", event.name);
+        jgen.writeStringField("number", event.number);
+        jgen.writeStringField("message", event.message);
+        jgen.writeEndObject();
+    }
+    
     public String getId() {
         return id;
     }
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import java.util.Collection;
+
+/**
+ * Page of a delta synchronization: events updated since the client watermark,
+ * and the new watermark to use for the next synchronization once every page
+ * was read. If <code>resync</code> is set, events were deleted since the
+ * client watermark: the client must read every event again, then use the new
+ * watermark. Expired events do not set <code>resync</code>: the client drops
+ * events older than the retention period.
+ * @author Pixmob
+ */
+public class EventSyncRemote {
+    public long watermark;
+    public boolean resync;
+    public String cursor;
+    public Collection<EventRemote> events;
+    
+    public long getWatermark() {
+        return watermark;
+    }
+    
+    public void setWatermark(long watermark) {
+        this.watermark = watermark;
+    }
+    
+    public boolean isResync() {
+        return resync;
+    }
+    
+    public void setResync(boolean resync) {
+        this.resync = resync;
+    }
+    
+    public String getCursor() {
+        return cursor;
+    }
+    
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+    
+    public Collection<EventRemote> getEvents() {
+        return events;
+    }
+    
+    public void setEvents(Collection<EventRemote> events) {
+        this.events = events;
+    }
+}
@@ -15,22 +15,38 @@
  */
 package org.pixmob.droidlink.gae.web.service;
 
+import static org.pixmob.droidlink.gae.Constants.BINARY_MIME_TYPE;
 import static org.pixmob.droidlink.gae.Constants.JSON_MIME_TYPE;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpServletResponse;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.pixmob.droidlink.gae.queue.DeleteJobQueue;
 import org.pixmob.droidlink.gae.service.AccessDeniedException;
+import org.pixmob.droidlink.gae.service.DeleteJob;
+import org.pixmob.droidlink.gae.service.Device;
 import org.pixmob.droidlink.gae.service.DeviceNotFoundException;
 import org.pixmob.droidlink.gae.service.DeviceService;
 import org.pixmob.droidlink.gae.service.Event;
+import org.pixmob.droidlink.gae.service.EventSync;
 import org.pixmob.droidlink.gae.service.EventType;
+import org.pixmob.droidlink.gae.service.Page;
 
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.users.User;
 import com.google.appengine.api.users.UserService;
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import com.google.sitebricks.At;
@@ -40,7 +56,9 @@ import com.google.sitebricks.headless.Request;
 import com.google.sitebricks.headless.Service;
 import com.google.sitebricks.http.Delete;
 import com.google.sitebricks.http.Get;
+import com.google.sitebricks.http.Post;
 import com.google.sitebricks.http.Put;
+import com.googlecode.objectify.Key;
 
 /**
  * Remote API for managing device events.
@@ -50,6 +68,12 @@ import com.google.sitebricks.http.Put;
 @Service
 public class EventWebService {
     public static final String URI = "/api/1/events";
+    public static final String SINCE_PARAM = "since";
+    public static final String LIMIT_PARAM = "limit";
+    public static final String CURSOR_PARAM = "cursor";
+    public static final String DEVICE_ID_PARAM = "deviceId";
+    public static final int MAX_PAGE_SIZE = 500;
+    public static final int MAX_BATCH_SIZE = 500;
     
     private static final Map<Integer, EventType> INT_TO_EVENT_TYPES = new HashMap<Integer, EventType>(
             2);
@@ -61,38 +85,172 @@ public class EventWebService {
     private final Logger logger = Logger.getLogger(getClass().getName());
     private final DeviceService deviceService;
     private final UserService userService;
+    private final Queue deleteQueue;
+    private final MemcacheService memcacheService;
     
     @Inject
-    EventWebService(final DeviceService deviceService, final UserService userService) {
+    EventWebService(final DeviceService deviceService, final UserService userService,
+            @Named("delete") final Queue deleteQueue, final MemcacheService memcacheService) {
         this.deviceService = deviceService;
         this.userService = userService;
+        this.deleteQueue = deleteQueue;
+        this.memcacheService = memcacheService;
     }
     
     @Get
-    public Reply<?> getEvents() {
+    public Reply<?> getEvents(Request request) {
         final User user = userService.getCurrentUser();
         if (user == null) {
             return Reply.saying().unauthorized();
         }
         
-        final Iterable<Event> events;
+        // Unchanged events are not read again: the version is checked first.
+        final boolean binary = Binary.isAccepted(request);
+        final long version = deviceService.getVersion(user.getEmail());
+        final String etag = EntityTags.get(version, binary);
+        if (EntityTags.isNotModified(request, etag)) {
+            return Reply.saying().status(HttpServletResponse.SC_NOT_MODIFIED).headers(
+                EntityTags.headers(etag));
+        }
+        
+        final String since = request.param(SINCE_PARAM);
+        if (since != null) {
+            return getEventsSince(user, since, request.param(LIMIT_PARAM),
+                request.param(CURSOR_PARAM)).headers(EntityTags.headers(etag));
+        }
+        
+        final String limit = request.param(LIMIT_PARAM);
+        if (limit != null) {
+            return getEventPage(user, limit, request.param(CURSOR_PARAM)).headers(
+                EntityTags.headers(etag));
+        }
+        
+        // The serialized events are cached for the current version: any write
+        // changes the version, and previous responses expire from memcache.
+        // The user devices are read from the registry, which is strongly
+        // consistent: a response built after a device was registered or
+        // unregistered always includes this change.
+        final String cacheKey = "response:events:" + user.getEmail() + ":" + version
+                + (binary ? ":bin" : ":json");
+        final CachedResponse cachedResponse = Cached.get(memcacheService, cacheKey);
+        if (cachedResponse != null) {
+            return Reply.with(cachedResponse).as(Cached.class).type(
+                binary ? BINARY_MIME_TYPE : JSON_MIME_TYPE).headers(EntityTags.headers(etag));
+        }
+        
+        // Events are streamed to the client page after page: only a single
+        // page is kept in memory, and events are written as soon as they are
+        // read.
+        final Page<Event> firstPage;
         try {
-            events = deviceService.getEvents(user.getEmail(), null);
+            firstPage = deviceService.getEvents(user.getEmail(), null, null, MAX_PAGE_SIZE);
         } catch (AccessDeniedException e) {
             return Reply.saying().forbidden();
         } catch (DeviceNotFoundException e) {
             return Reply.saying().noContent();
         }
+        if (firstPage.getItems().isEmpty()) {
+            return Reply.saying().noContent();
+        }
         
-        final Set<EventRemote> results = new HashSet<EventRemote>(32);
-        for (final Event event : events) {
-            results.add(new EventRemote(event));
+        final Iterator<Event> events = readEvents(deviceService, user.getEmail(), firstPage);
+        if (binary) {
+            return Reply.with(new CachedResponse(cacheKey, Iterators.transform(events,
+                new Function<Event, EventRemote>() {
+                    @Override
+                    public EventRemote apply(Event event) {
+                        return new EventRemote(event);
+                    }
+                }), Binary.class)).as(Cached.class).type(BINARY_MIME_TYPE).headers(
+                EntityTags.headers(etag));
         }
-        if (results.isEmpty()) {
+        return Reply.with(new CachedResponse(cacheKey, new EventStream(events), Json.class))
+                .as(Cached.class).type(JSON_MIME_TYPE).headers(EntityTags.headers(etag));
+    }
+    
+    private Reply<?> getEventPage(User user, String limitParam, String cursor) {
+        final int limit = parseLimit(limitParam);
+        if (limit < 1) {
+            return Reply.saying().error();
+        }
+        
+        final Page<Event> page;
+        try {
+            page = deviceService.getEvents(user.getEmail(), null, cursor, limit);
+        } catch (AccessDeniedException e) {
+            return Reply.saying().forbidden();
+        } catch (DeviceNotFoundException e) {
             return Reply.saying().noContent();
+        } catch (IllegalArgumentException e) {
+            logger.warning("Invalid event cursor: " + cursor);
+            return Reply.saying().error();
         }
         
-        return Reply.with(results).as(Json.class).type(JSON_MIME_TYPE);
+        final List<EventRemote> results = new ArrayList<EventRemote>(page.getItems().size());
+        for (final Event event : page) {
+            results.add(new EventRemote(event));
+        }
+        
+        final EventPageRemote pageRemote = new EventPageRemote();
+        pageRemote.cursor = page.getCursor();
+        pageRemote.events = results;
+        
+        return Reply.with(pageRemote).as(Json.class).type(JSON_MIME_TYPE);
+    }
+    
+    private Reply<?> getEventsSince(User user, String sinceParam, String limitParam,
+            String cursor) {
+        final long since;
+        try {
+            since = Long.parseLong(sinceParam);
+        } catch (NumberFormatException e) {
+            logger.warning("Invalid sync watermark: " + sinceParam);
+            return Reply.saying().error();
+        }
+        final int limit = limitParam == null ? MAX_PAGE_SIZE : parseLimit(limitParam);
+        if (limit < 1) {
+            return Reply.saying().error();
+        }
+        
+        final EventSync sync;
+        try {
+            sync = deviceService.getEventsSince(user.getEmail(), since, cursor, limit);
+        } catch (IllegalArgumentException e) {
+            logger.warning("Invalid sync cursor: " + cursor);
+            return Reply.saying().error();
+        }
+        
+        final List<EventRemote> results = new ArrayList<EventRemote>(sync.getItems().size());
+        for (final Event event : sync) {
+            results.add(new EventRemote(event));
+        }
+        
+        final EventSyncRemote syncRemote = new EventSyncRemote();
+        syncRemote.watermark = sync.getWatermark();
+        syncRemote.resync = sync.isResyncRequired();
+        syncRemote.cursor = sync.getCursor();
+        syncRemote.events = results;
+        
+        return Reply.with(syncRemote).as(Json.class).type(JSON_MIME_TYPE);
+    }
+    
+    /**
+     * Parse a page limit. The limit is capped to {@link #MAX_PAGE_SIZE}.
+     * @return the limit, or 0 if the limit is invalid
+     */
+    private int parseLimit(String limitParam) {
+        final int limit;
+        try {
+            limit = Math.min(Integer.parseInt(limitParam), MAX_PAGE_SIZE);
+        } catch (NumberFormatException e) {
+            logger.warning("Invalid page limit: " + limitParam);
+            return 0;
+        }
+        if (limit < 1) {
+            logger.warning("Invalid page limit: " + limitParam);
+            return 0;
+        }
+        return limit;
     }
     
     private Reply<?> deleteEvents() {
@@ -101,14 +259,17 @@ public class EventWebService {
             return Reply.saying().unauthorized();
         }
         
-        deviceService.deleteEvents(user.getEmail());
+        // Events are deleted in background: the client may follow the job.
+        final DeleteJob job = deviceService.deleteEvents(user.getEmail());
+        DeleteJobQueue.start(deleteQueue, job);
         
-        return Reply.saying().ok();
+        return Reply.with(new DeleteJobRemote(job)).as(Json.class).type(JSON_MIME_TYPE)
+                .status(HttpServletResponse.SC_ACCEPTED);
     }
     
     @At("/:eventId")
     @Delete
-    public Reply<?> deleteEvent(@Named("eventId") String eventId) {
+    public Reply<?> deleteEvent(Request request, @Named("eventId") String eventId) {
         if ("all".equals(eventId)) {
             return deleteEvents();
         }
@@ -118,11 +279,16 @@ public class EventWebService {
             return Reply.saying().unauthorized();
         }
         
-        logger.info("Delete event " + eventId);
+        // The device identifier is optional: when set, the event is deleted
+        // without searching it among the user devices.
+        final String deviceId = request.param(DEVICE_ID_PARAM);
+        logger.info("Delete event " + eventId + " (deviceId=" + deviceId + ")");
         try {
-            deviceService.deleteEvent(user.getEmail(), eventId);
+            deviceService.deleteEvent(user.getEmail(), deviceId, eventId);
         } catch (AccessDeniedException e) {
             return Reply.saying().forbidden();
+        } catch (DeviceNotFoundException e) {
+            return Reply.saying().notFound();
         }
         
         return Reply.saying().ok();
@@ -136,7 +302,8 @@ public class EventWebService {
             return Reply.saying().unauthorized();
         }
         
-        final EventRemote event = request.read(EventRemote.class).as(Json.class);
+        final EventRemote event = request.read(EventRemote.class).as(
+            Binary.forContent(request));
         final EventType eventType = INT_TO_EVENT_TYPES.get(event.type);
         if (eventType == null) {
             logger.warning("Invalid event type: " + event.type);
@@ -156,4 +323,113 @@ public class EventWebService {
         return Reply.saying().ok();
     }
     
+    /**
+     * Add several events with a single request. The result of each event is
+     * returned as an HTTP status code, in the order of the request.
+     */
+    @Post
+    public Reply<?> addEvents(Request request) {
+        final User user = userService.getCurrentUser();
+        if (user == null) {
+            return Reply.saying().unauthorized();
+        }
+        
+        final EventRemote[] remoteEvents = request.read(EventRemote[].class).as(
+            Binary.forContent(request));
+        if (remoteEvents.length > MAX_BATCH_SIZE) {
+            logger.warning("Too many events in batch: " + remoteEvents.length);
+            return Reply.saying().error();
+        }
+        
+        final List<EventStatusRemote> results = new ArrayList<EventStatusRemote>(
+                remoteEvents.length);
+        final List<Event> events = new ArrayList<Event>(remoteEvents.length);
+        final List<EventStatusRemote> eventResults = new ArrayList<EventStatusRemote>(
+                remoteEvents.length);
+        for (final EventRemote remoteEvent : remoteEvents) {
+            final EventStatusRemote result = new EventStatusRemote();
+            result.id = remoteEvent.id;
+            result.deviceId = remoteEvent.deviceId;
+            results.add(result);
+            
+            final EventType eventType = INT_TO_EVENT_TYPES.get(remoteEvent.type);
+            if (remoteEvent.id == null || remoteEvent.deviceId == null || eventType == null) {
+                logger.warning("Invalid event in batch: " + remoteEvent.id);
+                result.status = HttpServletResponse.SC_BAD_REQUEST;
+                continue;
+            }
+            
+            final Event event = new Event();
+            event.id = remoteEvent.id;
+            event.device = new Key<Device>(Device.class, remoteEvent.deviceId);
+            event.date = remoteEvent.created;
+            event.type = eventType;
+            event.number = remoteEvent.number;
+            event.name = remoteEvent.name;
+            event.message = remoteEvent.message;
+            events.add(event);
+            eventResults.add(result);
+        }
+        
+        logger.info("Add " + events.size() + " new events");
+        final List<Exception> errors = deviceService.addEvents(user.getEmail(), events);
+        for (int i = 0; i < errors.size(); ++i) {
+            final Exception error = errors.get(i);
+            final EventStatusRemote result = eventResults.get(i);
+            if (error == null) {
+                result.status = HttpServletResponse.SC_OK;
+            } else if (error instanceof AccessDeniedException) {
+                result.status = HttpServletResponse.SC_FORBIDDEN;
+            } else {
+                result.status = HttpServletResponse.SC_NOT_FOUND;
+            }
+        }
+        
+        return Reply.with(results).as(Json.class).type(JSON_MIME_TYPE);
+    }
+    
+    /**
+     * Read user events page after page, while the client response is written.
+     */
+    private static Iterator<Event> readEvents(final DeviceService deviceService,
+            final String user, final Page<Event> firstPage) {
+        return new AbstractIterator<Event>() {
+            private Iterator<Event> events = firstPage.iterator();
+            private String cursor = firstPage.getCursor();
+            
+            @Override
+            protected Event computeNext() {
+                while (!events.hasNext()) {
+                    if (cursor == null) {
+                        return endOfData();
+                    }
+                    final Page<Event> page;
+                    try {
+                        page = deviceService.getEvents(user, null, cursor, MAX_PAGE_SIZE);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Failed to get events for user "
+                                + user, e);
+                    }
+                    events = page.iterator();
+                    cursor = page.getCursor();
+                }
+                return events.next();
+            }
+        };
+    }
+    
+    /**
+     * User events, written as JSON objects.
+     * @author Pixmob
+     */
+    private static class EventStream extends JsonStream<Event> {
+        public EventStream(final Iterator<Event> events) {
+            super(events);
+        }
+        
+        @Override
+        protected void write(JsonGenerator jgen, Event event) throws IOException {
+            EventRemote.write(jgen, event);
+        }
+    }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import static org.pixmob.droidlink.gae.Constants.JSON_MIME_TYPE;
+
+import org.pixmob.droidlink.gae.service.AccessDeniedException;
+import org.pixmob.droidlink.gae.service.DeleteJob;
+import org.pixmob.droidlink.gae.service.DeviceService;
+import org.pixmob.droidlink.gae.service.JobNotFoundException;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.sitebricks.At;
+import com.google.sitebricks.client.transport.Json;
+import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Service;
+import com.google.sitebricks.http.Get;
+
+/**
+ * Remote API for following background jobs.
+ * @author Pixmob
+ */
+@At(JobWebService.URI)
+@Service
+public class JobWebService {
+    public static final String URI = "/api/1/jobs";
+    private final DeviceService deviceService;
+    private final UserService userService;
+    
+    @Inject
+    JobWebService(final DeviceService deviceService, final UserService userService) {
+        this.deviceService = deviceService;
+        this.userService = userService;
+    }
+    
+    @At("/:jobId")
+    @Get
+    public Reply<?> getJob(@Named("jobId") String jobId) {
+        final User user = userService.getCurrentUser();
+        if (user == null) {
+            return Reply.saying().unauthorized();
+        }
+        
+        final DeleteJob job;
+        try {
+            job = deviceService.getDeleteJob(user.getEmail(), Long.parseLong(jobId));
+        } catch (NumberFormatException e) {
+            return Reply.saying().notFound();
+        } catch (JobNotFoundException e) {
+            return Reply.saying().notFound();
+        } catch (AccessDeniedException e) {
+            return Reply.saying().forbidden();
+        }
+        
+        return Reply.with(new DeleteJobRemote(job)).as(Json.class).type(JSON_MIME_TYPE);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.map.JsonSerializable;
+import org.codehaus.jackson.map.SerializerProvider;
+
+/**
+ * JSON array written while entities are read from the datastore. Each entity
+ * is written to the response with a {@link JsonGenerator}, without building
+ * a remote object nor using reflection: only the entities of the current
+ * datastore batch are kept in memory. The array is written once.
+ * @author Pixmob
+ */
+abstract class JsonStream<T> implements JsonSerializable {
+    private final Iterator<T> items;
+    
+    public JsonStream(final Iterator<T> items) {
+        this.items = items;
+    }
+    
+    @Override
+    public void serialize(JsonGenerator jgen, SerializerProvider provider) throws IOException,
+            JsonProcessingException {
+        jgen.writeStartArray();
+        while (items.hasNext()) {
+            write(jgen, items.next());
+        }
+        jgen.writeEndArray();
+    }
+    
+    /**
+     * Write an entity as a JSON object.
+     */
+    protected abstract void write(JsonGenerator jgen, T item) throws IOException;
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import static org.pixmob.droidlink.gae.Constants.JSON_MIME_TYPE;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.android.c2dm.server.C2DMMetrics;
+import com.google.inject.Inject;
+import com.google.sitebricks.At;
+import com.google.sitebricks.client.transport.Json;
+import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Service;
+import com.google.sitebricks.http.Get;
+
+/**
+ * Push delivery metrics, for administrators only. Metrics are reported for
+ * this instance, and for every instance (from memcache).
+ * @author Pixmob
+ */
+@At(PushMetricsWebService.URI)
+@Service
+public class PushMetricsWebService {
+    public static final String URI = "/api/1/stats/push";
+    private final C2DMMetrics metrics;
+    
+    @Inject
+    PushMetricsWebService(final C2DMMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    @Get
+    public Reply<?> getMetrics() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>(2);
+        stats.put("instance", metrics.getInstanceMetrics());
+        stats.put("aggregate", metrics.getAggregateMetrics());
+        
+        return Reply.with(stats).as(Json.class).type(JSON_MIME_TYPE);
+    }
+}
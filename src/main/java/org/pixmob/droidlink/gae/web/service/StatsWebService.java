@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.web.service;
+
+import static org.pixmob.droidlink.gae.Constants.JSON_MIME_TYPE;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.pixmob.droidlink.gae.service.DeviceService;
+import org.pixmob.droidlink.gae.service.PushService;
+
+import com.google.android.c2dm.server.C2DMessaging;
+import com.google.inject.Inject;
+import com.google.sitebricks.At;
+import com.google.sitebricks.client.transport.Json;
+import com.google.sitebricks.headless.Reply;
+import com.google.sitebricks.headless.Service;
+import com.google.sitebricks.http.Get;
+
+/**
+ * Statistics of this instance, for administrators only.
+ * @author Pixmob
+ */
+@At(StatsWebService.URI)
+@Service
+public class StatsWebService {
+    public static final String URI = "/api/1/stats";
+    private final DeviceService deviceService;
+    private final PushService pushService;
+    private final C2DMessaging c2dm;
+    
+    @Inject
+    StatsWebService(final DeviceService deviceService, final PushService pushService,
+            final C2DMessaging c2dm) {
+        this.deviceService = deviceService;
+        this.pushService = pushService;
+        this.c2dm = c2dm;
+    }
+    
+    @Get
+    public Reply<?> getStats() {
+        final Map<String, Object> stats = new LinkedHashMap<String, Object>(4);
+        stats.put("deviceOwnerCache", deviceService.getDeviceOwnerCacheStats());
+        stats.put("push", pushService.getStats());
+        stats.put("c2dmSender", c2dm.getSenderStats());
+        
+        return Reply.with(stats).as(Json.class).type(JSON_MIME_TYPE);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ * @author Pixmob
+ */
+public class CircuitBreakerTest {
+    private static final long OPEN_DELAY = 50;
+    
+    @Test
+    public void testOpenAfterConsecutiveFailures() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(3, OPEN_DELAY);
+        circuitBreaker.onFailure(0);
+        circuitBreaker.onFailure(0);
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.isOpen());
+        
+        circuitBreaker.onFailure(0);
+        assertTrue(circuitBreaker.isOpen());
+        assertFalse(circuitBreaker.allowRequest());
+        assertTrue(circuitBreaker.getRetryDelay() > 0);
+        assertTrue(circuitBreaker.getRetryDelay() <= OPEN_DELAY);
+    }
+    
+    @Test
+    public void testSuccessResetsFailures() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(2, OPEN_DELAY);
+        circuitBreaker.onFailure(0);
+        circuitBreaker.onSuccess();
+        circuitBreaker.onFailure(0);
+        assertFalse(circuitBreaker.isOpen());
+        assertTrue(circuitBreaker.allowRequest());
+        assertEquals(0, circuitBreaker.getRetryDelay());
+    }
+    
+    @Test
+    public void testHalfOpenAllowsSingleProbe() throws InterruptedException {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(1, OPEN_DELAY);
+        circuitBreaker.onFailure(0);
+        assertFalse(circuitBreaker.allowRequest());
+        
+        Thread.sleep(OPEN_DELAY + 10);
+        assertFalse(circuitBreaker.isOpen());
+        assertTrue(circuitBreaker.allowRequest());
+        assertFalse(circuitBreaker.allowRequest());
+        
+        // The circuit is closed once the probe succeeds.
+        circuitBreaker.onSuccess();
+        assertTrue(circuitBreaker.allowRequest());
+        assertTrue(circuitBreaker.allowRequest());
+    }
+    
+    @Test
+    public void testFailedProbeOpensCircuit() throws InterruptedException {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(1, OPEN_DELAY);
+        circuitBreaker.onFailure(0);
+        Thread.sleep(OPEN_DELAY + 10);
+        assertTrue(circuitBreaker.allowRequest());
+        
+        circuitBreaker.onFailure(0);
+        assertTrue(circuitBreaker.isOpen());
+        assertFalse(circuitBreaker.allowRequest());
+    }
+    
+    @Test
+    public void testRetryAfterOpensCircuit() {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker(5, OPEN_DELAY);
+        circuitBreaker.onFailure(60 * 1000);
+        assertTrue(circuitBreaker.isOpen());
+        assertFalse(circuitBreaker.allowRequest());
+        assertTrue(circuitBreaker.getRetryDelay() > OPEN_DELAY);
+        assertTrue(circuitBreaker.getRetryDelay() <= 60 * 1000);
+    }
+}
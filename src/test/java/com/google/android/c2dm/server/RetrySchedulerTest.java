@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.c2dm.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RetryScheduler}, and for the <code>Retry-After</code>
+ * header read by {@link HttpResult}.
+ * @author Pixmob
+ */
+public class RetrySchedulerTest {
+    private static final String ENDPOINT = "http://localhost/send";
+    private static final long BASE_DELAY = 1000;
+    private static final long MAX_DELAY = 8000;
+    
+    @Test
+    public void testDelayWithJitter() {
+        final RetryScheduler retryScheduler = new RetryScheduler(new StubHttpSender(0),
+                ENDPOINT, BASE_DELAY, MAX_DELAY);
+        for (int attempt = 1; attempt <= 4; ++attempt) {
+            final long maxAttemptDelay = BASE_DELAY << (attempt - 1);
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            for (int i = 0; i < 100; ++i) {
+                final long delay = retryScheduler.getDelay(attempt);
+                assertTrue(delay >= 0);
+                assertTrue(delay < maxAttemptDelay);
+                min = Math.min(min, delay);
+                max = Math.max(max, delay);
+            }
+            // Delays are spread over the whole range.
+            assertTrue(max - min > maxAttemptDelay / 4);
+        }
+    }
+    
+    @Test
+    public void testMaxDelay() {
+        final RetryScheduler retryScheduler = new RetryScheduler(new StubHttpSender(0),
+                ENDPOINT, BASE_DELAY, MAX_DELAY);
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(retryScheduler.getDelay(10) < MAX_DELAY);
+            assertTrue(retryScheduler.getDelay(Integer.MAX_VALUE) < MAX_DELAY);
+        }
+    }
+    
+    @Test
+    public void testDelayAfterOpenCircuit() {
+        final long circuitDelay = 60 * 1000;
+        final RetryScheduler retryScheduler = new RetryScheduler(new StubHttpSender(
+                circuitDelay), ENDPOINT, BASE_DELAY, MAX_DELAY);
+        for (int i = 0; i < 100; ++i) {
+            final long delay = retryScheduler.getDelay(1);
+            assertTrue(delay >= circuitDelay);
+            assertTrue(delay < circuitDelay + BASE_DELAY);
+        }
+    }
+    
+    @Test
+    public void testRetryAfterSeconds() {
+        assertEquals(120 * 1000, newResult(" 120 ").getRetryAfter());
+        assertEquals(0, newResult("-5").getRetryAfter());
+    }
+    
+    @Test
+    public void testRetryAfterDate() {
+        final long retryAfter = newResult("Fri, 31 Dec 2100 23:59:59 GMT").getRetryAfter();
+        assertTrue(retryAfter > 0);
+        assertEquals(0, newResult("Thu, 01 Jan 1970 00:00:00 GMT").getRetryAfter());
+    }
+    
+    @Test
+    public void testRetryAfterInvalid() {
+        assertEquals(0, newResult("soon").getRetryAfter());
+        assertEquals(0, new HttpResult(503, Collections.<String, String> emptyMap(), null)
+                .getRetryAfter());
+    }
+    
+    private static HttpResult newResult(String retryAfter) {
+        final Map<String, String> headers = new HashMap<String, String>(1);
+        headers.put("retry-after", retryAfter);
+        return new HttpResult(503, headers, null);
+    }
+    
+    /**
+     * {@link HttpSender} implementation with a fixed retry delay.
+     * @author Pixmob
+     */
+    private static class StubHttpSender implements HttpSender {
+        private final long retryDelay;
+        
+        public StubHttpSender(final long retryDelay) {
+            this.retryDelay = retryDelay;
+        }
+        
+        @Override
+        public HttpResult post(String url, Map<String, String> headers, byte[] body) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public Future<HttpResult> postAsync(String url, Map<String, String> headers,
+                byte[] body) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public long getRetryDelay(String url) {
+            return retryDelay;
+        }
+        
+        @Override
+        public Map<String, Long> getStats() {
+            return Collections.emptyMap();
+        }
+    }
+}
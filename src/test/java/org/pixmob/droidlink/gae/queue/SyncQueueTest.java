@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.URLDecoder;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pixmob.droidlink.gae.Constants;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+
+/**
+ * Tests for the coalescing of sync triggers by {@link SyncQueue}.
+ * @author Pixmob
+ */
+public class SyncQueueTest {
+    private static final String USER = "user@example.com";
+    
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalMemcacheServiceTestConfig(), new LocalTaskQueueTestConfig()
+                    .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
+    private Queue queue;
+    private MemcacheService memcacheService;
+    
+    @Before
+    public void setUp() throws InterruptedException {
+        helper.setUp();
+        queue = QueueFactory.getQueue("sync");
+        memcacheService = MemcacheServiceFactory.getMemcacheService();
+        
+        // Triggers of a test must be in the same time window.
+        final long remaining = Constants.SYNC_WINDOW - System.currentTimeMillis()
+                % Constants.SYNC_WINDOW;
+        if (remaining < 1000) {
+            Thread.sleep(remaining + 10);
+        }
+    }
+    
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+    
+    @Test
+    public void testTriggersFromSameDevice() throws Exception {
+        SyncQueue.trigger(queue, memcacheService, USER, "device1", "token1");
+        SyncQueue.trigger(queue, memcacheService, USER, "device1", "token2");
+        
+        final String window = getQueuedWindow();
+        assertEquals("token2", SyncQueue.getSyncToken(memcacheService, USER, window));
+        assertEquals("device1", SyncQueue.getDeviceIdSource(memcacheService, USER, window));
+    }
+    
+    @Test
+    public void testTriggersFromSeveralDevices() throws Exception {
+        SyncQueue.trigger(queue, memcacheService, USER, "device1", "token1");
+        SyncQueue.trigger(queue, memcacheService, USER, "device2", null);
+        SyncQueue.trigger(queue, memcacheService, USER, "device1", null);
+        
+        final String window = getQueuedWindow();
+        assertEquals("token1", SyncQueue.getSyncToken(memcacheService, USER, window));
+        assertNull(SyncQueue.getDeviceIdSource(memcacheService, USER, window));
+    }
+    
+    @Test
+    public void testTriggerForAllDevices() throws Exception {
+        SyncQueue.trigger(queue, memcacheService, USER, null, null);
+        SyncQueue.trigger(queue, memcacheService, USER, "device1", null);
+        
+        final String window = getQueuedWindow();
+        assertNull(SyncQueue.getSyncToken(memcacheService, USER, window));
+        assertNull(SyncQueue.getDeviceIdSource(memcacheService, USER, window));
+    }
+    
+    /**
+     * Check that a single sync task was queued.
+     * @return time window of the queued task
+     */
+    private static String getQueuedWindow() throws Exception {
+        final List<TaskStateInfo> tasks = LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get("sync").getTaskInfo();
+        assertEquals(1, tasks.size());
+        
+        String window = null;
+        for (final String param : tasks.get(0).getBody().split("&")) {
+            final int i = param.indexOf('=');
+            if (SyncQueue.WINDOW_PARAM.equals(param.substring(0, i))) {
+                window = URLDecoder.decode(param.substring(i + 1), "UTF-8");
+            }
+        }
+        assertNotNull(window);
+        return window;
+    }
+}
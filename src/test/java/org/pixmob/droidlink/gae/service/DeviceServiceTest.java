@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pixmob.droidlink.gae.Constants;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyFactory;
+
+/**
+ * Tests for {@link DeviceService}, with local App Engine services.
+ * @author Pixmob
+ */
+public class DeviceServiceTest {
+    private static final String USER = "user@example.com";
+    private static final String OTHER_USER = "other@example.com";
+    
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig(),
+            new LocalTaskQueueTestConfig().setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml"));
+    private DeviceService deviceService;
+    
+    @Before
+    public void setUp() {
+        helper.setUp();
+        
+        final ObjectifyFactory of = new ObjectifyFactory();
+        of.register(Device.class);
+        of.register(Event.class);
+        of.register(RegisteredUser.class);
+        of.register(DeleteJob.class);
+        deviceService = new DeviceService(of, QueueFactory.getQueue("events"),
+                MemcacheServiceFactory.getMemcacheService());
+    }
+    
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+    
+    @Test
+    public void testAddEventsPartialSuccess() throws Exception {
+        deviceService.registerDevice(USER, "device1", "Device 1", null);
+        deviceService.registerDevice(OTHER_USER, "device2", "Device 2", null);
+        
+        // The same event identifier is used on several devices.
+        final List<Exception> errors = deviceService.addEvents(USER, Arrays.asList(
+            newEvent("device1", "event1"), newEvent("device2", "event1"),
+            newEvent("device3", "event1"), newEvent("device1", "event2")));
+        
+        assertEquals(4, errors.size());
+        assertNull(errors.get(0));
+        assertTrue(errors.get(1) instanceof AccessDeniedException);
+        assertTrue(errors.get(2) instanceof DeviceNotFoundException);
+        assertNull(errors.get(3));
+        
+        assertEquals("event1", deviceService.getEvent(USER, "device1", "event1").id);
+        assertEquals("event2", deviceService.getEvent(USER, "device1", "event2").id);
+        try {
+            deviceService.getEvent(OTHER_USER, "device2", "event1");
+            fail("Event added to a device of another user");
+        } catch (EventNotFoundException e) {
+        }
+    }
+    
+    @Test
+    public void testFlushEvents() throws Exception {
+        deviceService.registerDevice(USER, "device1", "Device 1", null);
+        
+        final EventBuffer eventBuffer = new EventBuffer(QueueFactory.getQueue("events"),
+                Constants.EVENT_BUFFER_LEASE_TIME);
+        final Event oldEvent = newEvent("device1", "event1");
+        oldEvent.message = "old";
+        eventBuffer.add(oldEvent);
+        Thread.sleep(10);
+        final Event newEvent = newEvent("device1", "event1");
+        newEvent.message = "new";
+        eventBuffer.add(Arrays.asList(newEvent, newEvent("device3", "event1")));
+        
+        assertEquals(3, deviceService.flushEvents(10));
+        assertEquals("new", deviceService.getEvent(USER, "device1", "event1").message);
+        
+        // Events of unknown devices are removed from the buffer too.
+        assertEquals(0, deviceService.flushEvents(10));
+    }
+    
+    @Test
+    public void testGetEventsPaging() throws Exception {
+        deviceService.registerDevice(USER, "device1", "Device 1", null);
+        final List<Event> events = new ArrayList<Event>(5);
+        for (int i = 0; i < 5; ++i) {
+            final Event event = newEvent("device1", "event" + i);
+            event.date = 1000 + i;
+            events.add(event);
+        }
+        deviceService.addEvents(USER, events);
+        
+        final List<String> eventIds = new ArrayList<String>(5);
+        Page<Event> page = deviceService.getEvents(USER, "device1", null, 2);
+        assertEquals(2, page.getItems().size());
+        addEventIds(page, eventIds);
+        page = deviceService.getEvents(USER, "device1", page.getCursor(), 2);
+        assertEquals(2, page.getItems().size());
+        addEventIds(page, eventIds);
+        page = deviceService.getEvents(USER, "device1", page.getCursor(), 2);
+        assertEquals(1, page.getItems().size());
+        assertNull(page.getCursor());
+        addEventIds(page, eventIds);
+        
+        // Most recent first.
+        final List<String> expectedEventIds = Arrays.asList("event4", "event3", "event2",
+            "event1", "event0");
+        assertEquals(expectedEventIds, eventIds);
+        
+        // The last page of events ends the listing, even when it is full.
+        for (int limit = 1; limit <= events.size() + 1; ++limit) {
+            eventIds.clear();
+            assertEquals((events.size() + limit - 1) / limit, readEventIds("device1", limit,
+                eventIds));
+            assertEquals("Page size: " + limit, expectedEventIds, eventIds);
+        }
+    }
+    
+    @Test
+    public void testGetEventsMergedPaging() throws Exception {
+        deviceService.registerDevice(USER, "device1", "Device 1", null);
+        deviceService.registerDevice(USER, "device2", "Device 2", null);
+        
+        // Events are interleaved between devices, with a date shared by both
+        // devices.
+        final long[] dates1 = { 1000, 1003, 1004, 1006 };
+        final long[] dates2 = { 1001, 1002, 1004, 1005, 1007 };
+        final List<Event> events = new ArrayList<Event>(dates1.length + dates2.length);
+        for (final long date : dates1) {
+            final Event event = newEvent("device1", "a" + date);
+            event.date = date;
+            events.add(event);
+        }
+        for (final long date : dates2) {
+            final Event event = newEvent("device2", "b" + date);
+            event.date = date;
+            events.add(event);
+        }
+        deviceService.addEvents(USER, events);
+        
+        final List<String> expectedEventIds = Arrays.asList("b1007", "a1006", "b1005",
+            "a1004", "b1004", "a1003", "b1002", "b1001", "a1000");
+        final List<String> eventIds = new ArrayList<String>(events.size());
+        assertEquals(3, readEventIds(null, 3, eventIds));
+        assertEquals(expectedEventIds, eventIds);
+        
+        // No event is dropped or returned twice between pages, whatever the
+        // page size.
+        for (int limit = 1; limit <= events.size() + 1; ++limit) {
+            eventIds.clear();
+            assertEquals((events.size() + limit - 1) / limit, readEventIds(null, limit,
+                eventIds));
+            assertEquals("Page size: " + limit, expectedEventIds, eventIds);
+        }
+    }
+    
+    /**
+     * Read every event page after page.
+     * @return number of pages
+     */
+    private int readEventIds(String deviceId, int limit, List<String> eventIds)
+            throws Exception {
+        String cursor = null;
+        int pages = 0;
+        do {
+            final Page<Event> page = deviceService.getEvents(USER, deviceId, cursor, limit);
+            addEventIds(page, eventIds);
+            cursor = page.getCursor();
+            pages++;
+        } while (cursor != null);
+        return pages;
+    }
+    
+    private static void addEventIds(Page<Event> page, List<String> eventIds) {
+        for (final Event event : page) {
+            eventIds.add(event.id);
+        }
+    }
+    
+    private static Event newEvent(String deviceId, String eventId) {
+        final Event event = new Event();
+        event.id = eventId;
+        event.device = new Key<Device>(Device.class, deviceId);
+        event.date = System.currentTimeMillis();
+        event.type = EventType.MISSED_CALL;
+        return event;
+    }
+}
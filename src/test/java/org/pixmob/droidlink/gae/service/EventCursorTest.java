@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2011 Pixmob (http://github.com/pixmob)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.pixmob.droidlink.gae.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+/**
+ * Tests for {@link EventCursor}.
+ * @author Pixmob
+ */
+public class EventCursorTest {
+    private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+            new LocalDatastoreServiceTestConfig());
+    private Cursor cursor1;
+    private Cursor cursor2;
+    
+    @Before
+    public void setUp() {
+        helper.setUp();
+        
+        // Cursors are read from a real query.
+        final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        datastore.put(Arrays.asList(new Entity("Test"), new Entity("Test")));
+        final QueryResultIterator<Entity> i = datastore.prepare(new Query("Test"))
+                .asQueryResultIterator(FetchOptions.Builder.withDefaults());
+        i.next();
+        cursor1 = i.getCursor();
+        i.next();
+        cursor2 = i.getCursor();
+    }
+    
+    @After
+    public void tearDown() {
+        helper.tearDown();
+    }
+    
+    @Test
+    public void testRoundTrip() {
+        // Device identifiers may contain separators and non-ASCII characters.
+        final EventCursor cursor = new EventCursor();
+        cursor.put("device.1~a", cursor1);
+        cursor.put("appareil-é", cursor2);
+        
+        final EventCursor parsedCursor = EventCursor.parse(cursor.toString());
+        assertEquals(Arrays.asList("device.1~a", "appareil-é"), Arrays.asList(parsedCursor
+                .getCursors().keySet().toArray()));
+        assertEquals(cursor1.toWebSafeString(), parsedCursor.get("device.1~a").toWebSafeString());
+        assertEquals(cursor2.toWebSafeString(), parsedCursor.get("appareil-é")
+                .toWebSafeString());
+        assertEquals(cursor.toString(), parsedCursor.toString());
+    }
+    
+    @Test
+    public void testParseEmpty() {
+        assertNull(EventCursor.parse(null));
+        assertNull(EventCursor.parse(""));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseWithoutCursor() {
+        EventCursor.parse("6465766963653");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidDevice() {
+        EventCursor.parse("zz." + cursor1.toWebSafeString());
+    }
+}